@@ -23,6 +23,26 @@ public class ConfigHelper {
     return System.getenv(name.toUpperCase().replace('.', '_'));
   }
 
+  String value(String name, String defaultValue) {
+    String strValue = value(name);
+    if (strValue == null) {
+      return defaultValue;
+    }
+    return strValue;
+  }
+
+  int intValue(String name, int defaultValue) {
+    String strValue = value(name);
+    if (strValue == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(strValue);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Parameter -" + name + " is not a number: " + strValue);
+    }
+  }
+
   String requiredValue(String name) {
     String strValue = value(name);
     if (strValue == null) {
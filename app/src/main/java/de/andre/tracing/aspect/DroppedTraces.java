@@ -0,0 +1,39 @@
+package de.andre.tracing.aspect;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exact number of dropped calls per method, a dropped sampled trace counts with its weight. Only
+ * touched when a trace buffer overflows.
+ */
+final class DroppedTraces {
+
+  private final Map<Integer, AtomicLong> counts = new ConcurrentHashMap<>();
+
+  void count(int methodId, int calls) {
+    counts.computeIfAbsent(methodId, k -> new AtomicLong()).addAndGet(calls);
+  }
+
+  /**
+   * Hands over all counts since the last call and returns their sum.
+   */
+  long drainTo(Consumer consumer) {
+    long total = 0;
+    for (Map.Entry<Integer, AtomicLong> entry : counts.entrySet()) {
+      long count = entry.getValue().getAndSet(0);
+      if (count > 0) {
+        consumer.accept(entry.getKey(), count);
+        total += count;
+      }
+    }
+    return total;
+  }
+
+  @FunctionalInterface
+  interface Consumer {
+
+    void accept(int methodId, long count);
+  }
+}
@@ -0,0 +1,129 @@
+package de.andre.tracing.aspect;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of durations, each one standing for {@code weight} calls, its size does
+ * not grow with the number of calls. Durations are kept with {@code precision} significant
+ * decimal digits: below {@code 2 * 10^precision} ns they are exact, larger ones keep their most
+ * significant bits and percentiles report the middle of their bucket. Count, sum and max are
+ * exact. Sums, counts and percentiles extrapolate sampled calls by their weight.
+ */
+final class DurationHistogram {
+
+  private final int subBucketBits;
+  // counts per magnitude, allocated when the first duration of the magnitude is added. Above
+  // magnitude 0 only the upper half of the sub buckets is kept, the lower half is covered by
+  // the magnitude below.
+  private final long[][] counts;
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  /**
+   * @param precision significant decimal digits, 1 to 5
+   */
+  DurationHistogram(int precision) {
+    if (precision < 1 || precision > 5) {
+      throw new IllegalArgumentException("-precision must be between 1 and 5: " + precision);
+    }
+    long exactBelow = 2 * (long) Math.pow(10, precision);
+    this.subBucketBits = Long.SIZE - Long.numberOfLeadingZeros(exactBelow - 1);
+    this.counts = new long[Long.SIZE - subBucketBits + 1][];
+  }
+
+  void add(long durationNs, int weight) {
+    long value = Math.max(0, durationNs);
+    int magnitude = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(value) - subBucketBits);
+    int firstSubBucket = firstSubBucket(magnitude);
+    if (counts[magnitude] == null) {
+      counts[magnitude] = new long[(1 << subBucketBits) - firstSubBucket];
+    }
+    counts[magnitude][(int) (value >>> magnitude) - firstSubBucket] += weight;
+    count += weight;
+    sum += durationNs * weight;
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds the durations of another histogram of the same precision, e.g. of another thread or
+   * file.
+   */
+  void merge(DurationHistogram other) {
+    if (other.subBucketBits != subBucketBits) {
+      throw new IllegalArgumentException("Cannot merge histograms of different precision");
+    }
+    for (int magnitude = 0; magnitude < counts.length; magnitude++) {
+      long[] otherSubBuckets = other.counts[magnitude];
+      if (otherSubBuckets == null) {
+        continue;
+      }
+      if (counts[magnitude] == null) {
+        counts[magnitude] = otherSubBuckets.clone();
+      } else {
+        for (int i = 0; i < otherSubBuckets.length; i++) {
+          counts[magnitude][i] += otherSubBuckets[i];
+        }
+      }
+    }
+    count += other.count;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Forgets all durations, keeps the allocated magnitudes for reuse.
+   */
+  void clear() {
+    for (long[] subBuckets : counts) {
+      if (subBuckets != null) {
+        Arrays.fill(subBuckets, 0);
+      }
+    }
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  long count() {
+    return count;
+  }
+
+  long sum() {
+    return sum;
+  }
+
+  long max() {
+    return max;
+  }
+
+  /**
+   * Duration below which {@code percent} of the (extrapolated) calls are, {@code 0} if empty.
+   */
+  long p(double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long index = Math.min((long) (percent * count / 100), count - 1);
+    long calls = 0;
+    for (int magnitude = 0; magnitude < counts.length; magnitude++) {
+      long[] subBuckets = counts[magnitude];
+      if (subBuckets == null) {
+        continue;
+      }
+      for (int i = 0; i < subBuckets.length; i++) {
+        calls += subBuckets[i];
+        if (calls > index) {
+          // middle of the bucket
+          long lowerBound = (long) (firstSubBucket(magnitude) + i) << magnitude;
+          return Math.min(max, lowerBound + ((1L << magnitude) >> 1));
+        }
+      }
+    }
+    return max;
+  }
+
+  private int firstSubBucket(int magnitude) {
+    return magnitude == 0 ? 0 : 1 << (subBucketBits - 1);
+  }
+}
@@ -0,0 +1,259 @@
+package de.andre.tracing.aspect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Per method statistics of the running application, aggregated by the writing thread from the
+ * traces it drains, so the traced threads do not do any additional work. Call count, total and
+ * self time are kept since the start and per time window; the durations of the last
+ * {@code windows} windows form the percentiles. Readers only see the immutable {@link Snapshot}
+ * the writing thread publishes about once per second.
+ *
+ * <p>Self time is the duration minus the outermost traced descendants and the untraced children
+ * folded into the call, both tracked by the {@link TraceBuffer}. Children dropped after they were
+ * offered ({@code dropOldest}) are missing, but not counted as self time of their parent. Sampled
+ * calls count with their weight. A call counts for the window it ended in.
+ */
+final class LiveStats {
+
+  private static final long PUBLISH_INTERVAL_NS = 1_000_000_000L;
+  private static final int PRECISION = 2;
+
+  private final SignatureRegistry signatureRegistry;
+  private final long windowNs;
+  private final int windows;
+
+  // written by the writing thread only, index is the method id
+  private MethodWindows[] methods = new MethodWindows[256];
+  // current window, the newest one of the snapshot
+  private long window;
+  private long lastPublishNs;
+  private volatile Snapshot snapshot;
+
+  /**
+   * @param windowSeconds length of one window
+   * @param windows       number of windows the percentiles and window totals cover
+   */
+  LiveStats(SignatureRegistry signatureRegistry, int windowSeconds, int windows) {
+    if (windowSeconds < 1 || windows < 1) {
+      throw new IllegalArgumentException("Stats window length and count must be positive");
+    }
+    this.signatureRegistry = signatureRegistry;
+    this.windowNs = windowSeconds * 1_000_000_000L;
+    this.windows = windows;
+    this.window = Math.floorDiv(System.nanoTime(), windowNs);
+    this.lastPublishNs = System.nanoTime();
+    this.snapshot = createSnapshot(lastPublishNs);
+  }
+
+  Snapshot snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Called by the writing thread for every written batch.
+   */
+  void observe(TraceBuffer.Batch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      long durationNs = batch.durationNs(i);
+      long selfNs =
+          Math.max(0, durationNs - batch.untracedNs(i) - batch.tracedChildrenNs(i));
+      long endWindow = Math.floorDiv(batch.startNs(i) + durationNs, windowNs);
+      method(batch.methodId(i)).add(endWindow, durationNs, selfNs, batch.weight(i));
+    }
+  }
+
+  /**
+   * Called by the writing thread, starts the next window when it is due and publishes a new
+   * snapshot once per second.
+   */
+  void publish() {
+    long nowNs = System.nanoTime();
+    window = Math.floorDiv(nowNs, windowNs);
+    if (nowNs - lastPublishNs < PUBLISH_INTERVAL_NS) {
+      return;
+    }
+    lastPublishNs = nowNs;
+    snapshot = createSnapshot(nowNs);
+  }
+
+  private MethodWindows method(int methodId) {
+    if (methodId >= methods.length) {
+      methods = Arrays.copyOf(methods, Math.max(methodId + 1, methods.length * 2));
+    }
+    MethodWindows method = methods[methodId];
+    if (method == null) {
+      method = new MethodWindows(windows);
+      methods[methodId] = method;
+    }
+    return method;
+  }
+
+  private Snapshot createSnapshot(long nowNs) {
+    long oldestWindow = window - windows + 1;
+    long fromEpochMillis =
+        System.currentTimeMillis() - (nowNs - oldestWindow * windowNs) / 1_000_000;
+    List<MethodSnapshot> methodSnapshots = new ArrayList<>();
+    for (int methodId = 0; methodId < methods.length; methodId++) {
+      MethodWindows method = methods[methodId];
+      if (method != null) {
+        methodSnapshots.add(method.snapshot(signatureRegistry.signature(methodId), oldestWindow));
+      }
+    }
+    methodSnapshots.sort(Comparator.comparingDouble(MethodSnapshot::windowTotalMs).reversed());
+    return new Snapshot(fromEpochMillis, windowNs / 1_000_000 * windows, methodSnapshots);
+  }
+
+  /**
+   * Statistics of one method, the windows are a ring indexed by window number modulo their count.
+   */
+  private static final class MethodWindows {
+
+    private final long[] windowOfSlot;
+    private final long[] selfNs;
+    private final DurationHistogram[] durations;
+    private long calls;
+    private long totalNs;
+    private long totalSelfNs;
+
+    private MethodWindows(int windows) {
+      this.windowOfSlot = new long[windows];
+      Arrays.fill(windowOfSlot, Long.MIN_VALUE);
+      this.selfNs = new long[windows];
+      this.durations = new DurationHistogram[windows];
+    }
+
+    private void add(long window, long durationNs, long selfNs, int weight) {
+      calls += weight;
+      totalNs += durationNs * weight;
+      totalSelfNs += selfNs * weight;
+
+      int slot = (int) Math.floorMod(window, (long) windowOfSlot.length);
+      if (windowOfSlot[slot] > window) {
+        // drained after its window left the ring
+        return;
+      }
+      if (windowOfSlot[slot] != window) {
+        // the slot still holds a window that left the ring
+        windowOfSlot[slot] = window;
+        this.selfNs[slot] = 0;
+        if (durations[slot] == null) {
+          durations[slot] = new DurationHistogram(PRECISION);
+        } else {
+          durations[slot].clear();
+        }
+      }
+      durations[slot].add(durationNs, weight);
+      this.selfNs[slot] += selfNs * weight;
+    }
+
+    private MethodSnapshot snapshot(String signature, long oldestWindow) {
+      DurationHistogram windowDurations = new DurationHistogram(PRECISION);
+      long windowSelfNs = 0;
+      for (int slot = 0; slot < windowOfSlot.length; slot++) {
+        if (windowOfSlot[slot] >= oldestWindow) {
+          windowDurations.merge(durations[slot]);
+          windowSelfNs += selfNs[slot];
+        }
+      }
+      return new MethodSnapshot(signature,
+          calls, toMs(totalNs), toMs(totalSelfNs),
+          windowDurations.count(), toMs(windowDurations.sum()), toMs(windowSelfNs),
+          toMs(windowDurations.p(50)), toMs(windowDurations.p(90)), toMs(windowDurations.p(99)),
+          toMs(windowDurations.p(99.9)), toMs(windowDurations.max()));
+    }
+
+    private static double toMs(long ns) {
+      return ns / 1_000_000.0;
+    }
+  }
+
+  /**
+   * Published statistics, serialized as JSON by {@link TracingStatsEndpoint}.
+   *
+   * @param windowFromEpochMillis start of the oldest window the window values cover
+   * @param windowMs              length of all windows, the newest one is still running
+   */
+  record Snapshot(
+      long windowFromEpochMillis,
+      long windowMs,
+      List<MethodSnapshot> methods
+  ) {
+
+    /**
+     * Prometheus text exposition format. Totals since the start are counters, the window
+     * percentiles are gauges.
+     */
+    String toPrometheus() {
+      StringBuilder text = new StringBuilder();
+      appendMetric(text, "tracing_calls_total", "counter", "Calls since the start.",
+          MethodSnapshot::calls, 1);
+      appendMetric(text, "tracing_duration_seconds_total", "counter",
+          "Duration of all calls since the start.", MethodSnapshot::totalMs, 1_000);
+      appendMetric(text, "tracing_self_seconds_total", "counter",
+          "Self time of all calls since the start.", MethodSnapshot::selfMs, 1_000);
+      text.append("# HELP tracing_window_duration_seconds Call durations in the last ")
+          .append(windowMs / 1_000).append(" seconds.\n")
+          .append("# TYPE tracing_window_duration_seconds gauge\n");
+      for (MethodSnapshot method : methods) {
+        appendQuantile(text, method, "0.5", method.p50Ms());
+        appendQuantile(text, method, "0.9", method.p90Ms());
+        appendQuantile(text, method, "0.99", method.p99Ms());
+        appendQuantile(text, method, "0.999", method.p999Ms());
+        appendQuantile(text, method, "1", method.maxMs());
+      }
+      return text.toString();
+    }
+
+    private void appendMetric(StringBuilder text, String name, String type, String help,
+        ToDoubleFunction<MethodSnapshot> value, double divisor) {
+      text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+          .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      for (MethodSnapshot method : methods) {
+        text.append(name).append("{method=\"").append(escapeLabel(method.method())).append("\"} ")
+            .append(formatValue(value.applyAsDouble(method) / divisor)).append('\n');
+      }
+    }
+
+    private static void appendQuantile(StringBuilder text, MethodSnapshot method, String quantile,
+        double valueMs) {
+      text.append("tracing_window_duration_seconds{method=\"")
+          .append(escapeLabel(method.method())).append("\",quantile=\"").append(quantile)
+          .append("\"} ").append(formatValue(valueMs / 1_000)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+      return value == Math.rint(value) && Math.abs(value) < 1e15
+          ? Long.toString((long) value)
+          : Double.toString(value);
+    }
+
+    private static String escapeLabel(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+  }
+
+  /**
+   * Statistics of one method, durations in milliseconds. The percentiles cover the windows.
+   */
+  record MethodSnapshot(
+      String method,
+      long calls,
+      double totalMs,
+      double selfMs,
+      long windowCalls,
+      double windowTotalMs,
+      double windowSelfMs,
+      double p50Ms,
+      double p90Ms,
+      double p99Ms,
+      double p999Ms,
+      double maxMs
+  ) {
+
+  }
+}
@@ -19,17 +19,15 @@ public class LoggingAspect {
 
   @Around("allServiceMethods()")
   public Object logAround(ProceedingJoinPoint joinPoint) throws Throwable {
+    TraceBuffer traceBuffer = TracingService.enter();
     long startNs = System.nanoTime();
 
     try {
       return joinPoint.proceed();
     } finally {
       long durationNs = System.nanoTime() - startNs;
-      String signature = joinPoint.getSignature().toString();
-      Thread currentThread = Thread.currentThread();
-      int threadHashCode = currentThread.hashCode();
-      String threadName = currentThread.getName();
-      TracingService.trace(startNs, durationNs, signature, threadHashCode, threadName);
+      int methodId = TracingService.methodId(joinPoint.getStaticPart());
+      TracingService.exit(traceBuffer, startNs, durationNs, methodId);
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package de.andre.tracing.aspect;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.MethodSignature;
+
+/**
+ * Assigns a stable method id to every traced join point, the signature string and its UTF-8
+ * bytes are built only once per method.
+ */
+final class SignatureRegistry {
+
+  private final Map<Object, Integer> methodIds = new ConcurrentHashMap<>();
+  private volatile String[] signatures = new String[256];
+  private volatile byte[][] signaturesUtf8 = new byte[256][];
+  private int size = 0;
+
+  int methodId(JoinPoint.StaticPart staticPart) {
+    Object key = key(staticPart);
+    Integer methodId = methodIds.get(key);
+    if (methodId == null) {
+      return register(key, staticPart);
+    }
+    return methodId;
+  }
+
+  String signature(int methodId) {
+    return signatures[methodId];
+  }
+
+  byte[] signatureUtf8(int methodId) {
+    return signaturesUtf8[methodId];
+  }
+
+  // Spring AOP creates a new join point (which is its own static part) for every call, so the
+  // reflected method is the stable identity. Woven join points have a singleton static part.
+  private static Object key(JoinPoint.StaticPart staticPart) {
+    Signature signature = staticPart.getSignature();
+    if (signature instanceof MethodSignature methodSignature) {
+      return methodSignature.getMethod();
+    }
+    return staticPart;
+  }
+
+  private synchronized int register(Object key, JoinPoint.StaticPart staticPart) {
+    Integer methodId = methodIds.get(key);
+    if (methodId != null) {
+      return methodId;
+    }
+
+    String[] newSignatures = signatures;
+    byte[][] newSignaturesUtf8 = signaturesUtf8;
+    if (size == newSignatures.length) {
+      newSignatures = Arrays.copyOf(newSignatures, size * 2);
+      newSignaturesUtf8 = Arrays.copyOf(newSignaturesUtf8, size * 2);
+    }
+    String signature = staticPart.getSignature().toString();
+    newSignatures[size] = signature;
+    newSignaturesUtf8[size] = signature.getBytes(StandardCharsets.UTF_8);
+    signatures = newSignatures;
+    signaturesUtf8 = newSignaturesUtf8;
+
+    methodIds.put(key, size);
+    return size++;
+  }
+}
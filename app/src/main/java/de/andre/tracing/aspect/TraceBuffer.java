@@ -0,0 +1,384 @@
+package de.andre.tracing.aspect;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Unwritten traces of one thread. Only the owner thread offers traces and only the writing thread
+ * drains them, so a slot is handed over with a release/acquire pair instead of a shared CAS. The
+ * owner thread only competes for the tail when it overwrites the oldest trace
+ * ({@link OverflowPolicy#DROP_OLDEST}). Once the buffer fills up to the high-water mark the owner
+ * thread wakes up the writing thread.
+ *
+ * <p>The buffer also keeps the stack of open calls of its thread. Children that are not traced
+ * (too short, not sampled or dropped) are folded into their parent, which is written with the
+ * number and the total duration of its untraced children. The time of traced descendants of an
+ * untraced child is not folded, they are written themselves and belong to the parent instead.
+ */
+final class TraceBuffer {
+
+  private static final VarHandle HEAD;
+  private static final VarHandle TAIL;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      HEAD = lookup.findVarHandle(TraceBuffer.class, "head", long.class);
+      TAIL = lookup.findVarHandle(TraceBuffer.class, "tail", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final Thread owner;
+  private final int threadId;
+  private final int threadHashCode;
+  private final String threadName;
+  private final byte[] threadNameUtf8;
+
+  private final int mask;
+  private final long[] startNs;
+  private final long[] durationNs;
+  private final int[] methodIds;
+  private final int[] weights;
+  private final int[] untracedCounts;
+  private final long[] untracedNs;
+  private final long[] tracedChildrenNs;
+  private final short[] depths;
+  private final Settings settings;
+  private final DroppedTraces droppedTraces;
+  private final Runnable highWaterMarkListener;
+
+  // next slot to write, only written by the owner thread
+  private long head;
+  // next slot to read, advanced by the writing thread (and the owner thread for DROP_OLDEST)
+  private long tail;
+  // owner thread only
+  private int overflowSampleCounter;
+  private int[] callCounters = new int[0];
+  // untraced children per open call, depth 0 collects the untraced calls without a parent
+  private int depth = 0;
+  private int[] untracedCountStack = new int[16];
+  private long[] untracedNsStack = new long[16];
+  // duration of the outermost traced descendants per open call
+  private long[] tracedNsStack = new long[16];
+
+  TraceBuffer(Thread owner, int threadId, Settings settings, DroppedTraces droppedTraces,
+      Runnable highWaterMarkListener) {
+    int capacity = settings.capacity();
+    this.owner = owner;
+    this.threadId = threadId;
+    this.threadHashCode = owner.hashCode();
+    this.threadName = owner.getName();
+    this.threadNameUtf8 = threadName.getBytes(StandardCharsets.UTF_8);
+    this.mask = capacity - 1;
+    this.startNs = new long[capacity];
+    this.durationNs = new long[capacity];
+    this.methodIds = new int[capacity];
+    this.weights = new int[capacity];
+    this.untracedCounts = new int[capacity];
+    this.untracedNs = new long[capacity];
+    this.tracedChildrenNs = new long[capacity];
+    this.depths = new short[capacity];
+    this.settings = settings;
+    this.droppedTraces = droppedTraces;
+    this.highWaterMarkListener = highWaterMarkListener;
+  }
+
+  int threadId() {
+    return threadId;
+  }
+
+  int threadHashCode() {
+    return threadHashCode;
+  }
+
+  String threadName() {
+    return threadName;
+  }
+
+  byte[] threadNameUtf8() {
+    return threadNameUtf8;
+  }
+
+  boolean isOwnerAlive() {
+    return owner.isAlive();
+  }
+
+  boolean isEmpty() {
+    return (long) HEAD.getAcquire(this) == (long) TAIL.getAcquire(this);
+  }
+
+  /**
+   * Called by the owner thread only when a traced call starts.
+   */
+  void enterCall() {
+    depth++;
+    if (depth == untracedCountStack.length) {
+      untracedCountStack = Arrays.copyOf(untracedCountStack, depth * 2);
+      untracedNsStack = Arrays.copyOf(untracedNsStack, depth * 2);
+      tracedNsStack = Arrays.copyOf(tracedNsStack, depth * 2);
+    }
+    untracedCountStack[depth] = 0;
+    untracedNsStack[depth] = 0;
+    tracedNsStack[depth] = 0;
+  }
+
+  /**
+   * Called by the owner thread only when a call ends, after it was offered or not. An untraced
+   * call is folded into its parent without the time of its traced descendants, which are nested
+   * directly into the parent by the analyzer.
+   */
+  void exitCall(long durationNs, boolean traced) {
+    depth--;
+    if (traced) {
+      tracedNsStack[depth] += durationNs;
+    } else {
+      long tracedDescendantsNs = tracedNsStack[depth + 1];
+      untracedCountStack[depth]++;
+      untracedNsStack[depth] += durationNs - tracedDescendantsNs;
+      tracedNsStack[depth] += tracedDescendantsNs;
+    }
+  }
+
+  /**
+   * Called by the owner thread only, counts the calls of a method for {@link TraceSampler}.
+   */
+  int countCall(int methodId) {
+    if (methodId >= callCounters.length) {
+      callCounters = Arrays.copyOf(callCounters, Math.max(methodId + 1, callCounters.length * 2));
+    }
+    return ++callCounters[methodId];
+  }
+
+  /**
+   * Called by the owner thread only, for the innermost open call. Returns {@code false} if the
+   * trace was dropped by the overflow policy.
+   *
+   * @param weight number of calls the trace stands for, more than 1 if it was sampled
+   */
+  boolean offer(long startNs, long durationNs, int methodId, int weight) {
+    long currentHead = head;
+    long used = currentHead - (long) TAIL.getAcquire(this);
+    if (used > mask && !makeRoom(currentHead)) {
+      droppedTraces.count(methodId, weight);
+      return false;
+    }
+    if (settings.overflowPolicy() == OverflowPolicy.SAMPLE
+        && used > (mask >> 1)
+        && ++overflowSampleCounter % settings.overflowSampleRate() != 0) {
+      droppedTraces.count(methodId, weight);
+      return false;
+    }
+
+    int index = (int) currentHead & mask;
+    this.startNs[index] = startNs;
+    this.durationNs[index] = durationNs;
+    this.methodIds[index] = methodId;
+    this.weights[index] = weight;
+    this.untracedCounts[index] = untracedCountStack[depth];
+    this.untracedNs[index] = untracedNsStack[depth];
+    this.tracedChildrenNs[index] = tracedNsStack[depth];
+    // number of enclosing calls, traced or not
+    this.depths[index] = (short) Math.min(depth - 1, Short.MAX_VALUE);
+    HEAD.setRelease(this, currentHead + 1);
+
+    if (used + 1 == settings.highWaterMark()) {
+      highWaterMarkListener.run();
+    }
+    return true;
+  }
+
+  private boolean makeRoom(long currentHead) {
+    switch (settings.overflowPolicy()) {
+      case DROP_OLDEST -> {
+        while (true) {
+          long currentTail = (long) TAIL.getAcquire(this);
+          if (currentHead - currentTail <= mask) {
+            return true;
+          }
+          int oldestIndex = (int) currentTail & mask;
+          int oldestMethodId = methodIds[oldestIndex];
+          int oldestWeight = weights[oldestIndex];
+          if (TAIL.compareAndSet(this, currentTail, currentTail + 1)) {
+            droppedTraces.count(oldestMethodId, oldestWeight);
+            return true;
+          }
+        }
+      }
+      case BLOCK -> {
+        long deadlineNs = System.nanoTime() + settings.blockTimeoutNs();
+        while (currentHead - (long) TAIL.getAcquire(this) > mask) {
+          if (System.nanoTime() - deadlineNs > 0) {
+            return false;
+          }
+          LockSupport.parkNanos(50_000);
+        }
+        return true;
+      }
+      default -> {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Called by the writing thread only. Moves as many traces as fit into the batch.
+   */
+  int drainTo(Batch batch) {
+    while (true) {
+      batch.clear(this);
+
+      long currentTail = (long) TAIL.getAcquire(this);
+      long available = (long) HEAD.getAcquire(this) - currentTail;
+      int count = (int) Math.min(available, batch.capacity());
+      for (int i = 0; i < count; i++) {
+        int index = (int) (currentTail + i) & mask;
+        batch.add(startNs[index], durationNs[index], methodIds[index], weights[index],
+            untracedCounts[index], untracedNs[index], tracedChildrenNs[index], depths[index]);
+      }
+      // fails only if the owner thread dropped the oldest trace meanwhile, the copied slots
+      // may be overwritten already
+      if (TAIL.compareAndSet(this, currentTail, currentTail + count)) {
+        return count;
+      }
+    }
+  }
+
+  enum OverflowPolicy {
+    DROP_NEWEST,
+    DROP_OLDEST,
+    BLOCK,
+    SAMPLE;
+
+    static OverflowPolicy parse(String value) {
+      return switch (value) {
+        case "dropNewest" -> DROP_NEWEST;
+        case "dropOldest" -> DROP_OLDEST;
+        case "block" -> BLOCK;
+        case "sample" -> SAMPLE;
+        default -> throw new IllegalArgumentException("Unknown tracing.overflowPolicy " + value);
+      };
+    }
+  }
+
+  /**
+   * @param capacity           slots per thread, a power of two
+   * @param highWaterMark      number of used slots that wakes up the writing thread
+   * @param blockTimeoutNs     max time the owner thread waits for a free slot with
+   *                           {@link OverflowPolicy#BLOCK}
+   * @param overflowSampleRate with {@link OverflowPolicy#SAMPLE} only every n-th trace is kept
+   *                           once the buffer is half full
+   */
+  record Settings(
+      int capacity,
+      int highWaterMark,
+      OverflowPolicy overflowPolicy,
+      long blockTimeoutNs,
+      int overflowSampleRate
+  ) {
+
+    Settings {
+      if (Integer.bitCount(capacity) != 1) {
+        throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+      }
+      highWaterMark = Math.max(1, Math.min(highWaterMark, capacity / 2));
+    }
+  }
+
+  /**
+   * Reusable container for the traces drained from one {@link TraceBuffer}.
+   */
+  static final class Batch {
+
+    private final long[] startNs;
+    private final long[] durationNs;
+    private final int[] methodIds;
+    private final int[] weights;
+    private final int[] untracedCounts;
+    private final long[] untracedNs;
+    private final long[] tracedChildrenNs;
+    private final short[] depths;
+    private TraceBuffer source;
+    private int size;
+
+    Batch(int capacity) {
+      this.startNs = new long[capacity];
+      this.durationNs = new long[capacity];
+      this.methodIds = new int[capacity];
+      this.weights = new int[capacity];
+      this.untracedCounts = new int[capacity];
+      this.untracedNs = new long[capacity];
+      this.tracedChildrenNs = new long[capacity];
+      this.depths = new short[capacity];
+    }
+
+    int capacity() {
+      return startNs.length;
+    }
+
+    int size() {
+      return size;
+    }
+
+    TraceBuffer source() {
+      return source;
+    }
+
+    long startNs(int index) {
+      return startNs[index];
+    }
+
+    long durationNs(int index) {
+      return durationNs[index];
+    }
+
+    int methodId(int index) {
+      return methodIds[index];
+    }
+
+    int weight(int index) {
+      return weights[index];
+    }
+
+    int untracedCount(int index) {
+      return untracedCounts[index];
+    }
+
+    long untracedNs(int index) {
+      return untracedNs[index];
+    }
+
+    /**
+     * Duration of the outermost traced descendants, not written to the trace.
+     */
+    long tracedChildrenNs(int index) {
+      return tracedChildrenNs[index];
+    }
+
+    short depth(int index) {
+      return depths[index];
+    }
+
+    private void clear(TraceBuffer newSource) {
+      this.source = newSource;
+      this.size = 0;
+    }
+
+    private void add(long startNs, long durationNs, int methodId, int weight,
+        int untracedCount, long untracedNs, long tracedChildrenNs, short depth) {
+      this.startNs[size] = startNs;
+      this.durationNs[size] = durationNs;
+      this.methodIds[size] = methodId;
+      this.weights[size] = weight;
+      this.untracedCounts[size] = untracedCount;
+      this.untracedNs[size] = untracedNs;
+      this.tracedChildrenNs[size] = tracedChildrenNs;
+      this.depths[size] = depth;
+      size++;
+    }
+  }
+}
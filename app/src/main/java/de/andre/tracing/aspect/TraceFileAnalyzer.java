@@ -1,23 +1,51 @@
 package de.andre.tracing.aspect;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.IntToLongFunction;
 import java.util.function.ToLongFunction;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class TraceFileAnalyzer {
 
@@ -35,65 +63,370 @@ public class TraceFileAnalyzer {
 
   private void analyze() {
     String type = config.requiredValue("type");
+    String mode = config.value("mode", "memory");
+    int precision = config.intValue("precision", 2);
 
+    switch (type) {
+      case "flame" -> analyzeFlameGraph(mode);
+      case "cct" -> analyzeCallPaths(mode, precision);
+      case "timeline" -> writeTimeline();
+      case "timeseries" -> writeTimeSeries(precision);
+      case "diff" -> analyzeDiff(mode, precision);
+      default -> analyzeMethods(type, mode, precision);
+    }
+  }
+
+  private void analyzeMethods(String type, String mode, int precision) {
+    Analyzer analyzer = switch (type) {
+      case "flat" -> new FlatAnalyzer(precision);
+      case "self" -> new SelfTimeAnalyzer(precision);
+      case "tree" -> new TreeTimeAnalyzer(precision);
+      default -> throw new IllegalArgumentException("Unknown -type " + type);
+    };
+
+    switch (mode) {
+      case "memory" -> {
+        DataContainer dataContainer = new DataContainer()
+            .parseFile(config);
+        analyzer.write(config, analyzer.collect(dataContainer), dataContainer);
+      }
+      case "streaming" -> {
+        // the events are not kept, only the statistics per method
+        StreamingAnalyzer streamingAnalyzer = new StreamingAnalyzer(precision);
+        DataContainer dataContainer = new DataContainer(streamingAnalyzer)
+            .parseFile(config);
+        analyzer.write(config, streamingAnalyzer.stats(), dataContainer);
+      }
+      default -> throw new IllegalArgumentException("Unknown -mode " + mode);
+    }
+  }
+
+  private void analyzeFlameGraph(String mode) {
+    requireMemoryMode("flame", mode);
+    FlameGraphAnalyzer flameGraphAnalyzer =
+        new FlameGraphAnalyzer(config.value("weight", "wall"));
     DataContainer dataContainer = new DataContainer()
         .parseFile(config);
+    flameGraphAnalyzer.write(config, flameGraphAnalyzer.collect(dataContainer), dataContainer);
+  }
 
-    switch (type) {
-      case "flat" -> new FlatAnalyzer().analyze(config, dataContainer);
-      case "self" -> new SelfTimeAnalyzer().analyze(config, dataContainer);
-      case "tree" -> new TreeTimeAnalyzer().analyze(config, dataContainer);
-      default -> throw new IllegalArgumentException("Unknown -type " + type);
+  private void analyzeCallPaths(String mode, int precision) {
+    requireMemoryMode("cct", mode);
+    CallPathAnalyzer callPathAnalyzer = new CallPathAnalyzer(precision,
+        config.intValue("maxDepth", Integer.MAX_VALUE),
+        config.value("collapseRecursion", "false").equals("true"));
+    DataContainer dataContainer = new DataContainer()
+        .parseFile(config);
+    callPathAnalyzer.write(config, callPathAnalyzer.collect(dataContainer), dataContainer);
+  }
+
+  private void writeTimeline() {
+    // the events are written while parsing, whatever the mode
+    try (TimelineWriter timelineWriter = new TimelineWriter(config.requiredValue("output"),
+        config.value("thread"))) {
+      new DataContainer(timelineWriter)
+          .parseFile(config);
+    }
+  }
+
+  private void analyzeDiff(String mode, int precision) {
+    String filename = config.requiredValue("file");
+    String baseline = config.requiredValue("baseline");
+    // both traces are parsed at the same time, each by its own pool
+    // each trace has its own time window, e.g. the same hour of two days
+    CompletableFuture<Map<MethodData, MethodStats>> baselineStats =
+        CompletableFuture.supplyAsync(() -> collectTree(mode, precision, baseline,
+            "baselineFrom", "baselineTo"));
+    Map<MethodData, MethodStats> stats = collectTree(mode, precision, filename, "from", "to");
+    try {
+      new DiffAnalyzer().write(config.requiredValue("output"), stats, baselineStats.join());
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Statistics per method with their sub calls like in the tree report.
+   */
+  private Map<MethodData, MethodStats> collectTree(String mode, int precision, String filename,
+      String fromParameter, String toParameter) {
+    return switch (mode) {
+      case "memory" -> new TreeTimeAnalyzer(precision)
+          .collect(new DataContainer().parseFile(config, filename, fromParameter, toParameter));
+      case "streaming" -> {
+        StreamingAnalyzer streamingAnalyzer = new StreamingAnalyzer(precision);
+        new DataContainer(streamingAnalyzer)
+            .parseFile(config, filename, fromParameter, toParameter);
+        yield streamingAnalyzer.stats();
+      }
+      default -> throw new IllegalArgumentException("Unknown -mode " + mode);
+    };
+  }
+
+  private void writeTimeSeries(int precision) {
+    // only the open buckets are kept, whatever the mode
+    try (TimeSeriesWriter timeSeriesWriter = new TimeSeriesWriter(config.requiredValue("output"),
+        precision, config.intValue("bucketMs", 1000), config.intValue("lateMs", 10_000))) {
+      new DataContainer(timeSeriesWriter)
+          .parseFile(config);
+    }
+  }
+
+  private static void requireMemoryMode(String type, String mode) {
+    if (!mode.equals("memory")) {
+      throw new IllegalArgumentException(
+          "-type " + type + " needs the whole call stacks, use -mode memory");
+    }
+  }
+
+  private interface Analyzer {
+
+    /**
+     * Statistics of all calls held by the data container.
+     */
+    Map<MethodData, MethodStats> collect(DataContainer dataContainer);
+
+    void write(ConfigHelper config, Map<MethodData, MethodStats> stats,
+        DataContainer dataContainer);
+  }
+
+  /**
+   * Receives the parsed calls in file order. The calls of one thread are in the order they ended.
+   */
+  private interface CallConsumer {
+
+    /**
+     * @param inTimeWindow {@code false} if the call is outside of {@code -from} and {@code -to},
+     *                     it only completes the call hierarchy then
+     */
+    void accept(CallColumns calls, int index, boolean inTimeWindow);
+
+    /**
+     * Called before the calls of a chunk with the clock record of its file, if it has one.
+     */
+    default void clock(long epochMillis, long nanoTime) {
     }
   }
 
-  private static class TreeTimeAnalyzer {
+  /**
+   * Single pass analysis that keeps the statistics per method and the ended sub calls of the open
+   * calls per thread, but not the calls themselves. Relies on the call depth written since version
+   * 2: when a call ends, its sub calls are the calls collected at deeper levels that started after
+   * it. Calls below the next level are traced descendants of untraced calls, which belong to their
+   * closest traced ancestor like in the memory mode. Earlier ones belong to an ancestor or to a
+   * parent that was not read.
+   *
+   * <p>To bound the memory by depth and number of methods, each level keeps only its most recent
+   * calls one by one and sums up the older ones per method. Older calls that started partly
+   * before and partly after the ending call are all taken as its sub calls, which can only happen
+   * after more than {@link SubCallFrame#RECENT_CALLS} calls of a level were left behind by a parent
+   * that was not traced or not read.
+   */
+  private static class StreamingAnalyzer implements CallConsumer {
+
+    private final Map<MethodData, MethodStats> stats = new HashMap<>();
+    private final Map<ThreadData, List<SubCallFrame>> framesPerThread = new HashMap<>();
+    private final int precision;
+
+    StreamingAnalyzer(int precision) {
+      this.precision = precision;
+    }
+
+    public Map<MethodData, MethodStats> stats() {
+      return stats;
+    }
+
+    @Override
+    public void accept(CallColumns calls, int index, boolean inTimeWindow) {
+      int depth = calls.depth(index);
+      if (depth < 0) {
+        throw new IllegalArgumentException("The trace file was written without call depths, "
+            + "analyze it with -mode memory");
+      }
+      List<SubCallFrame> frames = framesPerThread.computeIfAbsent(calls.thread(index),
+          k -> new ArrayList<>());
+      long startNs = calls.startNs(index);
+      long durationNs = calls.durationNs(index);
+      int weight = calls.weight(index);
+
+      // {minStartNs, durationNs} per sub method
+      Map<MethodData, long[]> subCallsPerMethod = new HashMap<>();
+      long subCallsNs = 0;
+      for (int subDepth = depth + 1; subDepth < frames.size(); subDepth++) {
+        SubCallFrame subCalls = frames.get(subDepth);
+        // the calls of one level do not overlap, the sub calls of this call are the last ones
+        int first = subCalls.size;
+        while (first > 0 && subCalls.startNs[first - 1] >= startNs) {
+          first--;
+        }
+        for (int i = first; i < subCalls.size; i++) {
+          subCallsNs += addSubCall(subCallsPerMethod, subCalls.methods[i], subCalls.startNs[i],
+              subCalls.durationNs[i]);
+        }
+        if (first == 0 && subCalls.olderLastStartNs >= startNs) {
+          for (Entry<MethodData, long[]> older : subCalls.olderPerMethod.entrySet()) {
+            subCallsNs += addSubCall(subCallsPerMethod, older.getKey(), older.getValue()[0],
+                older.getValue()[1]);
+          }
+          subCalls.clearOlder();
+        }
+        // a root call has no ancestor the remaining calls could belong to
+        if (depth == 0) {
+          subCalls.clearOlder();
+          first = 0;
+        }
+        subCalls.truncate(first);
+      }
+
+      if (inTimeWindow) {
+        MethodStats methodStats = stats.computeIfAbsent(calls.method(index),
+            k -> new MethodStats(precision));
+        methodStats.addDuration(startNs, durationNs, weight);
+        methodStats.addSelfDuration(durationNs - subCallsNs - calls.untracedNs(index), weight);
+        for (Entry<MethodData, long[]> subCall : subCallsPerMethod.entrySet()) {
+          methodStats.addSubCall(subCall.getKey(), subCall.getValue()[0],
+              subCall.getValue()[1], weight);
+        }
+        if (calls.untracedCount(index) > 0) {
+          methodStats.addSubCall(TreeTimeAnalyzer.UNTRACED_CALLS, startNs,
+              calls.untracedNs(index), weight);
+        }
+      }
+
+      if (depth > 0) {
+        frame(frames, depth).add(startNs, durationNs, calls.method(index));
+      }
+    }
+
+    private static long addSubCall(Map<MethodData, long[]> subCallsPerMethod, MethodData method,
+        long subCallStartNs, long subCallDurationNs) {
+      long[] subCall = subCallsPerMethod.computeIfAbsent(method,
+          k -> new long[]{Long.MAX_VALUE, 0});
+      subCall[0] = Math.min(subCall[0], subCallStartNs);
+      subCall[1] += subCallDurationNs;
+      return subCallDurationNs;
+    }
+
+    private static SubCallFrame frame(List<SubCallFrame> frames, int depth) {
+      while (frames.size() <= depth) {
+        frames.add(new SubCallFrame());
+      }
+      return frames.get(depth);
+    }
+
+    /**
+     * Ended calls of one depth whose parent has not ended yet, in the order they ended. The most
+     * recent ones are kept one by one, the older ones as {minStartNs, durationNs} per method.
+     */
+    private static class SubCallFrame {
+
+      private static final int RECENT_CALLS = 64;
+
+      private final long[] startNs = new long[RECENT_CALLS];
+      private final long[] durationNs = new long[RECENT_CALLS];
+      private final MethodData[] methods = new MethodData[RECENT_CALLS];
+      private int size = 0;
+      private final Map<MethodData, long[]> olderPerMethod = new HashMap<>();
+      private long olderLastStartNs = Long.MIN_VALUE;
 
-    private record SortKey(
-        long startNs,
-        int prio
-    ) {
+      void add(long callStartNs, long callDurationNs, MethodData method) {
+        if (size == RECENT_CALLS) {
+          foldOldest(RECENT_CALLS / 2);
+        }
+        startNs[size] = callStartNs;
+        durationNs[size] = callDurationNs;
+        methods[size] = method;
+        size++;
+      }
+
+      void truncate(int newSize) {
+        Arrays.fill(methods, newSize, size, null);
+        size = newSize;
+      }
 
-      public static SortKey header() {
-        return new SortKey(0, 0);
+      void clearOlder() {
+        olderPerMethod.clear();
+        olderLastStartNs = Long.MIN_VALUE;
+      }
+
+      private void foldOldest(int count) {
+        for (int i = 0; i < count; i++) {
+          long[] older = olderPerMethod.computeIfAbsent(methods[i],
+              k -> new long[]{Long.MAX_VALUE, 0});
+          older[0] = Math.min(older[0], startNs[i]);
+          older[1] += durationNs[i];
+        }
+        olderLastStartNs = startNs[count - 1];
+        System.arraycopy(startNs, count, startNs, 0, size - count);
+        System.arraycopy(durationNs, count, durationNs, 0, size - count);
+        System.arraycopy(methods, count, methods, 0, size - count);
+        truncate(size - count);
       }
     }
+  }
+
+  private static class TreeTimeAnalyzer implements Analyzer {
+
+    // children folded into their parent while tracing, e.g. because they were too short
+    private static final MethodData UNTRACED_CALLS = new MethodData("<untraced>");
 
     private enum OutputType {
       CSV,
       HTML
     }
 
-    void analyze(ConfigHelper config, DataContainer dataContainer) {
+    private final int precision;
+
+    TreeTimeAnalyzer(int precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public Map<MethodData, MethodStats> collect(DataContainer dataContainer) {
+      CallColumns calls = dataContainer.data();
+      MethodStats[] data = CallTree.collect(calls, dataContainer.threads(),
+          (callTree, from, to) -> {
+            MethodStats[] threadData = new MethodStats[calls.methodCount()];
+            SubCallSums subCallSums = new SubCallSums(calls.methodCount());
+            for (int position = from; position < to; position++) {
+              collectCall(calls, callTree, position, subCallSums, threadData);
+            }
+            return threadData;
+          },
+          MethodStats::merge);
+      return MethodStats.byMethod(calls, data);
+    }
+
+    @Override
+    public void write(ConfigHelper config, Map<MethodData, MethodStats> data,
+        DataContainer dataContainer) {
       String filename = config.requiredValue("output");
       OutputType outputType = OutputType.CSV;
       if (filename.endsWith(".html")) {
         outputType = OutputType.HTML;
       }
 
-      Map<MethodData, List<MethodWithSubCalls>> data = new HashMap<>();
-
-      // 1st group by thread
-      Map<ThreadData, List<Datapoint>> threadGroups = dataContainer.data()
-          .stream()
-          .collect(Collectors.groupingBy(Datapoint::thread));
-
-      for (List<Datapoint> threadLocalCalls : threadGroups.values()) {
-        var dataPerThread = collectThreadLocalData(threadLocalCalls);
-        StatHelper.mergeInto(data, dataPerThread);
+      switch (outputType) {
+        case CSV -> writeCsvFile(data, dataContainer, filename);
+        case HTML -> writeHtmlFile(data, dataContainer, filename);
       }
+    }
 
-      switch (outputType) {
-        case CSV -> writeCsvFile(data, filename);
-        case HTML -> writeHtmlFile(data, filename);
+    private void writeHtmlFile(Map<MethodData, MethodStats> data,
+        DataContainer dataContainer, String filename) {
+      try (ReportWriter html = new ReportWriter(filename)) {
+        writeHtml(data, dataContainer, html);
       }
     }
 
-    private void writeHtmlFile(Map<MethodData, List<MethodWithSubCalls>> data, String filename) {
-      SimpleFileFactory htmlFileFactory = new SimpleFileFactory();
+    private void writeHtml(Map<MethodData, MethodStats> data, DataContainer dataContainer,
+        ReportWriter html) {
 
       // write header
-      htmlFileFactory.newLine().append("""
+      html.newLine().append("""
           <!DOCTYPE html>
           <html lang="en">
           <head>
@@ -110,12 +443,8 @@ public class TraceFileAnalyzer {
           """);
 
       Map<MethodData, Long> firstMethodCall = new HashMap<>();
-      for (Entry<MethodData, List<MethodWithSubCalls>> entry : data.entrySet()) {
-        long firstStartNs = entry.getValue().stream()
-            .mapToLong(MethodWithSubCalls::startNs)
-            .min()
-            .orElseThrow();
-        firstMethodCall.put(entry.getKey(), firstStartNs);
+      for (Entry<MethodData, MethodStats> entry : data.entrySet()) {
+        firstMethodCall.put(entry.getKey(), entry.getValue().minStartNs());
       }
       List<Entry<MethodData, Long>> methodList = new ArrayList<>(firstMethodCall.entrySet());
       methodList.sort(Comparator
@@ -131,67 +460,51 @@ public class TraceFileAnalyzer {
       }
 
       // write table-of-content
-      htmlFileFactory.newLine().append("""
+      html.newLine().append("""
           <h1>All methods</h1>
           <ul>
           """);
       for (Entry<MethodData, Long> entry : methodList) {
         String anchorName = htmlAnchorNameLookUp.get(entry.getKey());
-        htmlFileFactory.newLine().append("<li>")
+        html.newLine().append("<li>")
             .append("<a href=\"#")
             .append(anchorName)
             .append("\">")
             .append(entry.getKey().shortSignature())
             .append("</a></li>");
       }
-      htmlFileFactory.newLine().append("</ul>");
+      html.newLine().append("</ul>");
 
       // write section for each entry
-      htmlFileFactory.newLine().append("<h1>All methods details</h1>");
+      html.newLine().append("<h1>All methods details</h1>");
       for (Entry<MethodData, Long> entry : methodList) {
         String anchorName = htmlAnchorNameLookUp.get(entry.getKey());
-        htmlFileFactory.newLine()
+        html.newLine()
             .append("<h3 id=\"").append(anchorName).append("\">Method: ")
             .append(entry.getKey().signatureWithoutReturnType())
             .append("</h3>");
-
-        // merge all MethodWithSubCalls into one data
-        List<MethodWithSubCalls> calls = data.get(entry.getKey());
-        Map<MethodData, List<Long>> subCallDurations = new HashMap<>();
-        Map<MethodData, Long> subCallStartNs = new HashMap<>();
-        List<Long> callDurations = new ArrayList<>();
-        List<Long> selfTimeNs = new ArrayList<>();
-
-        Long minStartNs = null;
-        for (MethodWithSubCalls call : calls) {
-          callDurations.add(call.durationNs);
-          selfTimeNs.add(call.selfTimeNs());
-          if (minStartNs == null || call.startNs < minStartNs) {
-            minStartNs = call.startNs;
-          }
-
-          for (MethodWithSubCalls.SubCallEntry subCall : call.sortedSubCalls()) {
-            subCallDurations.computeIfAbsent(subCall.subMethod(), k -> new ArrayList<>())
-                .add(subCall.durationNs());
-            Long oldMinStartNs = subCallStartNs.get(subCall.subMethod());
-            if (oldMinStartNs == null || subCall.startNs() < oldMinStartNs) {
-              subCallStartNs.put(subCall.subMethod(), subCall.startNs());
-            }
-          }
+        long droppedCalls = dataContainer.droppedCalls(entry.getKey());
+        if (droppedCalls > 0) {
+          html.newLine()
+              .append("<p>Incomplete: ").append(HtmlHelper.format(droppedCalls))
+              .append(" calls were dropped while tracing.</p>");
         }
-        assert minStartNs != null;
+
+        MethodStats methodStats = data.get(entry.getKey());
+        DurationHistogram callDurations = methodStats.durations();
+        DurationHistogram selfTimeNs = methodStats.selfDurations();
 
         // write entry for method call
-        // write entry for method call
-        callDurations.sort(Long::compareTo);
-        long p50 = pDuration(callDurations, 50);
-        long p90 = pDuration(callDurations, 90);
-        long p95 = pDuration(callDurations, 95);
-        long p99 = pDuration(callDurations, 99);
-        long sum = callDurations.stream().mapToLong(Long::longValue).sum();
-        int callCount = callDurations.size();
-
-        htmlFileFactory.newLine().append("""
+        long p50 = callDurations.p(50);
+        long p90 = callDurations.p(90);
+        long p95 = callDurations.p(95);
+        long p99 = callDurations.p(99);
+        long p999 = callDurations.p(99.9);
+        long max = callDurations.max();
+        long sum = callDurations.sum();
+        long callCount = callDurations.count();
+
+        html.newLine().append("""
             <table>
               <tr>
                 <th>method</th>
@@ -202,213 +515,209 @@ public class TraceFileAnalyzer {
                 <th class='num'>p90 [ms]</th>
                 <th class='num'>p95 [ms]</th>
                 <th class='num'>p99 [ms]</th>
+                <th class='num'>p99.9 [ms]</th>
+                <th class='num'>max [ms]</th>
               </tr>
             """);
-        htmlFileFactory.newLine().append("<tr>");
-        htmlFileFactory.newLine()
+        html.newLine().append("<tr>");
+        html.newLine()
             .append("<td>").append(entry.getKey().shortName()).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(sum)).append("</td>");
-        htmlFileFactory.newLine()
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(sum)).append("</td>");
+        html.newLine()
             .append("<td class='num'>-</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toString(callCount)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p50)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p90)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p95)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p99)).append("</td>");
-        htmlFileFactory.newLine().append("</tr>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.format(callCount)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p50)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p90)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p95)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p99)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p999)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(max)).append("</td>");
+        html.newLine().append("</tr>");
 
         // write entry for method call - self values
-        selfTimeNs.sort(Long::compareTo);
-        long p50self = pDuration(selfTimeNs, 50);
-        long p90self = pDuration(selfTimeNs, 90);
-        long p95self = pDuration(selfTimeNs, 95);
-        long p99self = pDuration(selfTimeNs, 99);
-        long sumSelf = selfTimeNs.stream().mapToLong(Long::longValue).sum();
-        long percentSelf = sumSelf * 100 / sum;
-
-        htmlFileFactory.newLine().append("<tr>");
-        htmlFileFactory.newLine()
+        long p50self = selfTimeNs.p(50);
+        long p90self = selfTimeNs.p(90);
+        long p95self = selfTimeNs.p(95);
+        long p99self = selfTimeNs.p(99);
+        long p999self = selfTimeNs.p(99.9);
+        long maxSelf = selfTimeNs.max();
+        long sumSelf = selfTimeNs.sum();
+        long percentSelf = StatHelper.percent(sumSelf, sum);
+
+        html.newLine().append("<tr>");
+        html.newLine()
             .append("<td>.. &lt;&lt;self&gt;&gt;</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(sumSelf)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toString(percentSelf)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toString(callCount)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p50self)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p90self)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p95self)).append("</td>");
-        htmlFileFactory.newLine()
-            .append("<td class='num'>").append(toMs(p99self)).append("</td>");
-        htmlFileFactory.newLine().append("</tr>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(sumSelf)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.format(percentSelf)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.format(callCount)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p50self)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p90self)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p95self)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p99self)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(p999self)).append("</td>");
+        html.newLine()
+            .append("<td class='num'>").append(HtmlHelper.toMs(maxSelf)).append("</td>");
+        html.newLine().append("</tr>");
 
         // TODO
 
         // write entries for sub calls
-        ArrayList<Entry<MethodData, Long>> dataCopy = new ArrayList<>(subCallStartNs.entrySet());
-        dataCopy.sort(Entry.comparingByValue());
-        for (Entry<MethodData, Long> subCallEntry : dataCopy) {
-          List<Long> subCallsDurationData = subCallDurations.get(subCallEntry.getKey());
-          subCallsDurationData.sort(Long::compareTo);
-          long p50sub = pDuration(subCallsDurationData, 50);
-          long p90sub = pDuration(subCallsDurationData, 90);
-          long p95sub = pDuration(subCallsDurationData, 95);
-          long p99sub = pDuration(subCallsDurationData, 99);
-          long sumSub = subCallsDurationData.stream().mapToLong(Long::longValue).sum();
-          long percentSub = sumSub * 100 / sum;
-          int callCountSub = subCallsDurationData.size();
+        for (Entry<MethodData, SubCallStats> subCallEntry : methodStats.sortedSubCalls()) {
+          DurationHistogram subCallsDurationData = subCallEntry.getValue().durations();
+          long p50sub = subCallsDurationData.p(50);
+          long p90sub = subCallsDurationData.p(90);
+          long p95sub = subCallsDurationData.p(95);
+          long p99sub = subCallsDurationData.p(99);
+          long p999sub = subCallsDurationData.p(99.9);
+          long maxSub = subCallsDurationData.max();
+          long sumSub = subCallsDurationData.sum();
+          long percentSub = StatHelper.percent(sumSub, sum);
+          long callCountSub = subCallsDurationData.count();
           String subCallAnchorName = htmlAnchorNameLookUp.get(subCallEntry.getKey());
 
-          htmlFileFactory.newLine().append("<tr>");
-          htmlFileFactory.newLine()
-              .append("<td>.. <a href=\"#").append(subCallAnchorName).append("\">")
-              .append(subCallEntry.getKey().shortName()).append("</a></td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toMs(sumSub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toString(percentSub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toString(callCountSub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toMs(p50sub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toMs(p90sub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toMs(p95sub)).append("</td>");
-          htmlFileFactory.newLine()
-              .append("<td class='num'>").append(toMs(p99sub)).append("</td>");
-          htmlFileFactory.newLine().append("</tr>");
-        }
-
-        htmlFileFactory.newLine().append("</table>");
+          html.newLine().append("<tr>");
+          if (subCallAnchorName == null) {
+            html.newLine()
+                .append("<td>.. ").append(HtmlHelper.escapeHtml(subCallEntry.getKey().shortName()))
+                .append("</td>");
+          } else {
+            html.newLine()
+                .append("<td>.. <a href=\"#").append(subCallAnchorName).append("\">")
+                .append(subCallEntry.getKey().shortName()).append("</a></td>");
+          }
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(sumSub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.format(percentSub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.format(callCountSub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(p50sub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(p90sub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(p95sub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(p99sub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(p999sub)).append("</td>");
+          html.newLine()
+              .append("<td class='num'>").append(HtmlHelper.toMs(maxSub)).append("</td>");
+          html.newLine().append("</tr>");
+        }
+
+        html.newLine().append("</table>");
       }
 
       // write footer
-      htmlFileFactory.newLine().append("</body></html>");
-
-      htmlFileFactory.writeToFile(filename);
+      html.newLine().append("</body></html>");
     }
 
-    private String toMs(long nanoSeconds) {
-      long ms = StatHelper.nanosToMillis(nanoSeconds);
-      return toString(ms);
-    }
-
-    private String toString(Number value) {
-      return DecimalFormat.getNumberInstance(Locale.GERMANY).format(value);
-    }
-
-    private void writeCsvFile(Map<MethodData, List<MethodWithSubCalls>> data, String filename) {
-      FileFactory<SortKey> csvFileFactory = new FileFactory<>(
-          Comparator.comparing(SortKey::startNs)
-              .thenComparing(SortKey::prio));
-
-      // write header
-      csvFileFactory.newLine(SortKey.header())
-          .append("minStartNs;id;method;sumMs;percent;callCount;median;p90;p95;p99");
-
-      int id = 1;
-      for (Entry<MethodData, List<MethodWithSubCalls>> entry : data.entrySet()) {
-        writeStatsAsCsv(entry.getKey(), id, entry.getValue(), csvFileFactory);
-        id++;
+    private void writeCsvFile(Map<MethodData, MethodStats> data,
+        DataContainer dataContainer, String filename) {
+      // ids in the order of the map, rows in the order of the first call of the methods
+      List<Entry<MethodData, MethodStats>> methods = new ArrayList<>(data.entrySet());
+      Map<MethodData, Integer> ids = new HashMap<>();
+      for (Entry<MethodData, MethodStats> entry : methods) {
+        ids.put(entry.getKey(), ids.size() + 1);
       }
+      methods.sort(Comparator.comparingLong(entry -> entry.getValue().minStartNs()));
 
-      csvFileFactory.writeToFile(filename);
-    }
-
-    private void writeStatsAsCsv(MethodData methodData, int id, List<MethodWithSubCalls> calls,
-        FileFactory<SortKey> fw) {
-
-      // merge all MethodWithSubCalls into one data
-      Map<MethodData, List<Long>> subCallDurations = new HashMap<>();
-      Map<MethodData, Long> subCallStartNs = new HashMap<>();
-      List<Long> callDurations = new ArrayList<>();
-      List<Long> selfTimeNs = new ArrayList<>();
-
-      Long minStartNs = null;
-      for (MethodWithSubCalls call : calls) {
-        callDurations.add(call.durationNs);
-        selfTimeNs.add(call.selfTimeNs());
-        if (minStartNs == null || call.startNs < minStartNs) {
-          minStartNs = call.startNs;
-        }
+      try (ReportWriter csv = new ReportWriter(filename)) {
+        // write header
+        csv.newLine()
+            .append("minStartNs;id;method;sumMs;percent;callCount;median;p90;p95;p99;p999;max;"
+                + "dropped");
 
-        for (MethodWithSubCalls.SubCallEntry subCall : call.sortedSubCalls()) {
-          subCallDurations.computeIfAbsent(subCall.subMethod(), k -> new ArrayList<>())
-              .add(subCall.durationNs());
-          Long oldMinStartNs = subCallStartNs.get(subCall.subMethod());
-          if (oldMinStartNs == null || subCall.startNs() < oldMinStartNs) {
-            subCallStartNs.put(subCall.subMethod(), subCall.startNs());
-          }
+        for (Entry<MethodData, MethodStats> entry : methods) {
+          writeStatsAsCsv(entry.getKey(), ids.get(entry.getKey()), entry.getValue(),
+              dataContainer.droppedCalls(entry.getKey()), csv);
         }
       }
-      assert minStartNs != null;
+    }
+
+    private void writeStatsAsCsv(MethodData methodData, int id, MethodStats methodStats,
+        long droppedCalls, ReportWriter fw) {
+      DurationHistogram callDurations = methodStats.durations();
+      DurationHistogram selfTimeNs = methodStats.selfDurations();
+      long minStartNs = methodStats.minStartNs();
 
       // write entry for method call
-      callDurations.sort(Long::compareTo);
-      long p50 = pDuration(callDurations, 50);
-      long p90 = pDuration(callDurations, 90);
-      long p95 = pDuration(callDurations, 95);
-      long p99 = pDuration(callDurations, 99);
-      long sum = callDurations.stream().mapToLong(Long::longValue).sum();
-      fw.newLine(new SortKey(minStartNs, -100))
+      long p50 = callDurations.p(50);
+      long p90 = callDurations.p(90);
+      long p95 = callDurations.p(95);
+      long p99 = callDurations.p(99);
+      long p999 = callDurations.p(99.9);
+      long max = callDurations.max();
+      long sum = callDurations.sum();
+      fw.newLine()
           .appendCsv(minStartNs)
           .appendCsv(id)
           .appendCsv(methodData.shortName())
           .appendCsv(StatHelper.nanosToMillis(sum))
           .appendCsv("100")
-          .appendCsv(callDurations.size())
+          .appendCsv(callDurations.count())
           .appendCsv(StatHelper.nanosToMillis(p50))
           .appendCsv(StatHelper.nanosToMillis(p90))
           .appendCsv(StatHelper.nanosToMillis(p95))
-          .appendCsv(StatHelper.nanosToMillis(p99));
+          .appendCsv(StatHelper.nanosToMillis(p99))
+          .appendCsv(StatHelper.nanosToMillis(p999))
+          .appendCsv(StatHelper.nanosToMillis(max))
+          .appendCsv(droppedCalls);
 
       // write entry for method call - self values
-      selfTimeNs.sort(Long::compareTo);
-      long p50self = pDuration(selfTimeNs, 50);
-      long p90self = pDuration(selfTimeNs, 90);
-      long p95self = pDuration(selfTimeNs, 95);
-      long p99self = pDuration(selfTimeNs, 99);
-      long sumSelf = selfTimeNs.stream().mapToLong(Long::longValue).sum();
-      long percentSelf = sumSelf * 100 / sum;
-      fw.newLine(new SortKey(minStartNs, -90))
+      long p50self = selfTimeNs.p(50);
+      long p90self = selfTimeNs.p(90);
+      long p95self = selfTimeNs.p(95);
+      long p99self = selfTimeNs.p(99);
+      long p999self = selfTimeNs.p(99.9);
+      long maxSelf = selfTimeNs.max();
+      long sumSelf = selfTimeNs.sum();
+      long percentSelf = StatHelper.percent(sumSelf, sum);
+      fw.newLine()
           .appendCsv(minStartNs)
           .appendCsv(id)
           .appendCsv(".. <self>")
           .appendCsv(StatHelper.nanosToMillis(sumSelf))
           .appendCsv(percentSelf)
-          .appendCsv(selfTimeNs.size())
+          .appendCsv(selfTimeNs.count())
           .appendCsv(StatHelper.nanosToMillis(p50self))
           .appendCsv(StatHelper.nanosToMillis(p90self))
           .appendCsv(StatHelper.nanosToMillis(p95self))
-          .appendCsv(StatHelper.nanosToMillis(p99self));
+          .appendCsv(StatHelper.nanosToMillis(p99self))
+          .appendCsv(StatHelper.nanosToMillis(p999self))
+          .appendCsv(StatHelper.nanosToMillis(maxSelf))
+          .appendCsv("");
 
       // write entries for sub calls
-      ArrayList<Entry<MethodData, Long>> data = new ArrayList<>(subCallStartNs.entrySet());
-      data.sort(Entry.comparingByValue());
-
-      int subRow = 1;
-      for (Entry<MethodData, Long> subCallEntry : data) {
-        subRow++;
-        List<Long> subCallsDurationData = subCallDurations.get(subCallEntry.getKey());
-        subCallsDurationData.sort(Long::compareTo);
-        long p50sub = pDuration(subCallsDurationData, 50);
-        long p90sub = pDuration(subCallsDurationData, 90);
-        long p95sub = pDuration(subCallsDurationData, 95);
-        long p99sub = pDuration(subCallsDurationData, 99);
-        long sumSub = subCallsDurationData.stream().mapToLong(Long::longValue).sum();
-        long percentSub = sumSub * 100 / sum;
-        int callCountSub = subCallsDurationData.size();
-        fw.newLine(new SortKey(minStartNs, subRow))
+      for (Entry<MethodData, SubCallStats> subCallEntry : methodStats.sortedSubCalls()) {
+        DurationHistogram subCallsDurationData = subCallEntry.getValue().durations();
+        long p50sub = subCallsDurationData.p(50);
+        long p90sub = subCallsDurationData.p(90);
+        long p95sub = subCallsDurationData.p(95);
+        long p99sub = subCallsDurationData.p(99);
+        long p999sub = subCallsDurationData.p(99.9);
+        long maxSub = subCallsDurationData.max();
+        long sumSub = subCallsDurationData.sum();
+        long percentSub = StatHelper.percent(sumSub, sum);
+        long callCountSub = subCallsDurationData.count();
+        fw.newLine()
             .appendCsv(minStartNs)
             .appendCsv(id)
             .appendCsv(".. ").append(subCallEntry.getKey().shortName())
@@ -418,377 +727,2499 @@ public class TraceFileAnalyzer {
             .appendCsv(StatHelper.nanosToMillis(p50sub))
             .appendCsv(StatHelper.nanosToMillis(p90sub))
             .appendCsv(StatHelper.nanosToMillis(p95sub))
-            .appendCsv(StatHelper.nanosToMillis(p99sub));
+            .appendCsv(StatHelper.nanosToMillis(p99sub))
+            .appendCsv(StatHelper.nanosToMillis(p999sub))
+            .appendCsv(StatHelper.nanosToMillis(maxSub))
+            .appendCsv("");
       }
     }
 
-    private long pDuration(List<Long> sortedDurations, int pValue) {
-      Long result = StatHelper.p(sortedDurations, pValue);
-      if (result == null) {
-        return 0;
+    private void collectCall(CallColumns calls, CallTree callTree, int position,
+        SubCallSums subCallSums, MethodStats[] data) {
+      // the sub calls are sorted by start, the first one of a method sets its start
+      subCallSums.clear();
+      for (int subPosition = position + 1; subPosition < callTree.subTreeEnd(position);
+          subPosition = callTree.subTreeEnd(subPosition)) {
+        int subCall = callTree.call(subPosition);
+        subCallSums.add(calls.methodId(subCall), calls.startNs(subCall),
+            calls.durationNs(subCall));
       }
-      return result;
-    }
-
-    private Map<MethodData, List<MethodWithSubCalls>> collectThreadLocalData(
-        List<Datapoint> threadLocalCalls) {
-      List<Datapoint> sortedCalls = new ArrayList<>(threadLocalCalls);
-      sortedCalls.sort(Comparator.comparing(Datapoint::startNs));
-
-      Map<MethodData, List<MethodWithSubCalls>> selfDurations = new HashMap<>();
 
-      for (int i = 0; i < sortedCalls.size(); i++) {
-        Datapoint callUnderInvestigation = sortedCalls.get(i);
-        MethodWithSubCalls methodWithSubCalls = calculateMethodWithSubCalls(sortedCalls,
-            callUnderInvestigation, i);
+      int call = callTree.call(position);
 
-        selfDurations.computeIfAbsent(callUnderInvestigation.method(), k -> new ArrayList<>())
-            .add(methodWithSubCalls);
+      int methodId = calls.methodId(call);
+      if (data[methodId] == null) {
+        data[methodId] = new MethodStats(precision);
+      }
+      MethodStats methodStats = data[methodId];
+      int weight = calls.weight(call);
+      methodStats.addDuration(calls.startNs(call), calls.durationNs(call), weight);
+      methodStats.addSelfDuration(callTree.selfNs(position), weight);
+      for (int i = 0; i < subCallSums.size(); i++) {
+        int subMethodId = subCallSums.methodId(i);
+        methodStats.addSubCall(calls.methodById(subMethodId), subCallSums.startNs(subMethodId),
+            subCallSums.durationNs(subMethodId), weight);
+      }
+      if (calls.untracedCount(call) > 0) {
+        methodStats.addSubCall(UNTRACED_CALLS, calls.startNs(call), calls.untracedNs(call),
+            weight);
       }
-
-      return selfDurations;
     }
 
-    private MethodWithSubCalls calculateMethodWithSubCalls(List<Datapoint> sortedCalls,
-        Datapoint callUnderInvestigation, int startIndex) {
-      List<MethodWithSubCalls.SubCallEntry> subCalls = new ArrayList<>();
-      long ignoreCallsUntilNs = callUnderInvestigation.startNs();
-
-      int index = startIndex + 1;
-      long endNs = callUnderInvestigation.endNs();
-      while (index < sortedCalls.size()) {
-        Datapoint call = sortedCalls.get(index);
-        index++;
+    /**
+     * Durations of the direct sub calls of one call summed up per method, reused for every call.
+     */
+    private static class SubCallSums {
+
+      // indexed by method id, valid if the generation of the method is the current one
+      private final long[] startNs;
+      private final long[] durationNs;
+      private final int[] generations;
+      // methods with sub calls in the current generation
+      private final int[] methodIds;
+      private int generation = 1;
+      private int size = 0;
+
+      private SubCallSums(int methodCount) {
+        this.startNs = new long[methodCount];
+        this.durationNs = new long[methodCount];
+        this.generations = new int[methodCount];
+        this.methodIds = new int[methodCount];
+      }
 
-        if (call.calledAfter(endNs)) {
-          // exit loop
-          break;
-        }
+      void clear() {
+        generation++;
+        size = 0;
+      }
 
-        if (call.startNs() <= ignoreCallsUntilNs) {
-          continue;
+      void add(int methodId, long subCallStartNs, long subCallDurationNs) {
+        if (generations[methodId] != generation) {
+          generations[methodId] = generation;
+          methodIds[size++] = methodId;
+          startNs[methodId] = subCallStartNs;
+          durationNs[methodId] = 0;
         }
-
-        subCalls.add(
-            new MethodWithSubCalls.SubCallEntry(call.method(), call.startNs(),
-                call.durationNs()));
-        ignoreCallsUntilNs = call.endNs();
+        durationNs[methodId] += subCallDurationNs;
       }
 
-      return new MethodWithSubCalls(
-          callUnderInvestigation.startNs(),
-          callUnderInvestigation.durationNs(),
-          subCalls);
-    }
-
-    private record MethodWithSubCalls(
-        long startNs,
-        long durationNs,
-        List<SubCallEntry> subCalls
-    ) {
-
-      private MethodWithSubCalls(long startNs, long durationNs,
-          List<SubCallEntry> subCalls) {
-        this.startNs = startNs;
-        this.durationNs = durationNs;
-        this.subCalls = Collections.unmodifiableList(subCalls);
+      int size() {
+        return size;
       }
 
-      public long selfTimeNs() {
-        return durationNs - subCalls.stream()
-            .mapToLong(SubCallEntry::durationNs)
-            .sum();
+      int methodId(int index) {
+        return methodIds[index];
       }
 
-      public List<SubCallEntry> sortedSubCalls() {
-        Map<MethodData, List<SubCallEntry>> groups = subCalls.stream()
-            .collect(Collectors.groupingBy(SubCallEntry::subMethod));
-
-        Map<MethodData, SubCallEntry> subCallsSum = new HashMap<>();
-        for (Entry<MethodData, List<SubCallEntry>> entry : groups.entrySet()) {
-          MethodData key = entry.getKey();
-          for (SubCallEntry subCallEntry : entry.getValue()) {
-            SubCallEntry oldValue = subCallsSum.get(key);
-            if (oldValue == null) {
-              subCallsSum.put(key, subCallEntry);
-            } else {
-              SubCallEntry newValue = new SubCallEntry(oldValue.subMethod(),
-                  Math.min(oldValue.startNs(), subCallEntry.startNs()),
-                  oldValue.durationNs() + subCallEntry.durationNs());
-              subCallsSum.put(key, newValue);
-            }
-          }
-        }
-
-        // sort by min start time
-        List<SubCallEntry> result = new ArrayList<>(subCallsSum.values());
-        result.sort(Comparator.comparing(SubCallEntry::startNs));
-        return result;
+      long startNs(int methodId) {
+        return startNs[methodId];
       }
 
-      private record SubCallEntry(
-          MethodData subMethod,
-          long startNs,
-          long durationNs
-      ) {
-
+      long durationNs(int methodId) {
+        return durationNs[methodId];
       }
     }
   }
 
 
-  private static class SelfTimeAnalyzer {
+  /**
+   * Merges the call stacks of all threads into a tree of frames and writes it as collapsed stacks
+   * ({@code frame;frame;frame selfNs} per line) or as an interactive html flame graph. The stacks
+   * are nested like in {@link TreeTimeAnalyzer}. With {@code -weight wall} a frame is as wide as
+   * the wall time of its calls, with {@code -weight self} the stacks are reversed: the bottom
+   * frames are the methods the self time is spent in, above them their callers.
+   */
+  private static class FlameGraphAnalyzer {
 
-    private record SortKey(
-        long startNs,
-        int row
-    ) {
+    private final boolean reversed;
 
-      public static SortKey header() {
-        return new SortKey(0, 0);
-      }
+    FlameGraphAnalyzer(String weight) {
+      this.reversed = switch (weight) {
+        case "wall" -> false;
+        case "self" -> true;
+        default -> throw new IllegalArgumentException("Unknown -weight " + weight);
+      };
     }
 
-    void analyze(ConfigHelper config, DataContainer dataContainer) {
-      String filename = config.requiredValue("output");
-
-      FileFactory<SortKey> fw = new FileFactory<>(
-          Comparator.comparing(SortKey::startNs)
-              .thenComparing(SortKey::row));
+    public StackTree collect(DataContainer dataContainer) {
+      CallColumns calls = dataContainer.data();
+      StackTree stacks = CallTree.collect(calls, dataContainer.threads(),
+          (callTree, from, to) -> {
+            StackTree threadStacks = new StackTree();
+            // open calls: end of their sub tree and their frame
+            int[] subTreeEnds = new int[64];
+            int[] frames = new int[64];
+            int depth = 0;
+            for (int position = from; position < to; position++) {
+              while (depth > 0 && subTreeEnds[depth - 1] <= position) {
+                depth--;
+              }
+              int call = callTree.call(position);
+              int weight = calls.weight(call);
+              int frame = threadStacks.child(depth == 0 ? CallPaths.ROOT : frames[depth - 1],
+                  calls.methodId(call));
+              threadStacks.addSelfNs(frame, Math.max(0, callTree.selfNs(position)) * weight);
+              if (calls.untracedCount(call) > 0) {
+                threadStacks.addSelfNs(threadStacks.child(frame, CallPaths.UNTRACED_CALLS),
+                    calls.untracedNs(call) * weight);
+              }
+              if (depth == frames.length) {
+                subTreeEnds = Arrays.copyOf(subTreeEnds, depth * 2);
+                frames = Arrays.copyOf(frames, depth * 2);
+              }
+              subTreeEnds[depth] = callTree.subTreeEnd(position);
+              frames[depth++] = frame;
+            }
+            return threadStacks;
+          },
+          StackTree::merge);
+      return reversed ? stacks.reversed() : stacks;
+    }
 
-      // write header
-      fw.newLine(SortKey.header())
-          .append("signature;sumDuration;callCount;p50;p90;p95;p99");
+    public void write(ConfigHelper config, StackTree stacks, DataContainer dataContainer) {
+      String filename = config.requiredValue("output");
+      CallColumns calls = dataContainer.data();
+      String[] names = new String[calls.methodCount()];
+      for (int methodId = 0; methodId < names.length; methodId++) {
+        names[methodId] = calls.methodById(methodId).signatureWithoutReturnType()
+            .replace(';', ',');
+      }
 
-      Map<MethodData, List<Long>> selfDurations = new HashMap<>();
-      // 1st group by thread
-      Map<ThreadData, List<Datapoint>> threadGroups = dataContainer.data()
-          .stream()
-          .collect(Collectors.groupingBy(Datapoint::thread));
+      try (ReportWriter output = new ReportWriter(filename)) {
+        if (filename.endsWith(".html")) {
+          writeHtml(stacks, names, output);
+        } else {
+          writeCollapsed(stacks, names, output);
+        }
+      }
+    }
 
-      for (List<Datapoint> threadLocalCalls : threadGroups.values()) {
-        Map<MethodData, List<Long>> selfDurationsOfThread
-            = collectThreadLocalData(threadLocalCalls);
-        StatHelper.mergeInto(selfDurations, selfDurationsOfThread);
+    private void writeCollapsed(StackTree stacks, String[] names, ReportWriter output) {
+      int[] path = new int[64];
+      for (int frame = 1; frame < stacks.size(); frame++) {
+        if (stacks.selfNs(frame) == 0) {
+          continue;
+        }
+        int length = 0;
+        for (int node = frame; node != CallPaths.ROOT; node = stacks.parent(node)) {
+          if (length == path.length) {
+            path = Arrays.copyOf(path, length * 2);
+          }
+          path[length++] = node;
+        }
+        ReportWriter.OutputLine line = output.newLine();
+        for (int i = length - 1; i >= 0; i--) {
+          line.append(name(names, stacks.methodId(path[i])));
+          line.append(i > 0 ? ";" : " ");
+        }
+        line.append(stacks.selfNs(frame));
       }
+    }
 
-      int row = 100;
-      for (Entry<MethodData, List<Long>> entry : selfDurations.entrySet()) {
-        writeStats(entry.getKey(), entry.getValue(), fw, row);
-        row++;
+    private void writeHtml(StackTree stacks, String[] names, ReportWriter html) {
+      html.newLine().append("""
+          <!DOCTYPE html>
+          <html lang="en">
+          <head>
+            <title>Flame graph</title>
+            <meta charset="UTF-8">
+            <style>
+              body { font-family: OttoSans, Arial, Helvetica, sans-serif; font-size: 14px }
+              #chart { width: 100%; }
+              #chart text { font-size: 12px; pointer-events: none }
+              #chart rect { stroke: white; stroke-width: 0.5 }
+              #status { height: 20px; white-space: nowrap; overflow: hidden }
+            </style>
+          </head>
+          <body>""");
+      html.newLine().append("<h3>Flame graph (")
+          .append(reversed ? "self time, callers above" : "wall time").append(")</h3>");
+      html.newLine().append("""
+          <div><input id="search" placeholder="Search"> <button id="reset">Reset zoom</button></div>
+          <div id="status"></div>
+          <svg id="chart"></svg>
+          <script>""");
+
+      // frame 0 is the root, a frame is always after its parent
+      html.newLine().append("const names = [");
+      for (int methodId = 0; methodId < names.length; methodId++) {
+        html.newLine().appendJson(names[methodId]).append(",");
       }
+      html.newLine().append("];");
+      html.newLine().append("const untraced = ").appendJson(name(names, CallPaths.UNTRACED_CALLS))
+          .append(";");
+      appendArray(html, "parents", stacks.size(), stacks::parent);
+      appendArray(html, "methods", stacks.size(), stacks::methodId);
+      appendArray(html, "selfNs", stacks.size(), stacks::selfNs);
+      html.newLine().append("""
+          const frameHeight = 17;
+          const count = parents.length;
+          const value = Float64Array.from(selfNs);
+          const depth = new Int32Array(count);
+          const children = Array.from({length: count}, () => []);
+          for (let i = count - 1; i > 0; i--) value[parents[i]] += value[i];
+          for (let i = 1; i < count; i++) {
+            depth[i] = depth[parents[i]] + 1;
+            children[parents[i]].push(i);
+          }
+          const name = i => i === 0 ? 'all' : methods[i] < 0 ? untraced : names[methods[i]];
+          for (const c of children) c.sort((a, b) => name(a).localeCompare(name(b)));
+          const chart = document.getElementById('chart');
+          const status = document.getElementById('status');
+          let focus = 0;
+          let search = '';
+
+          function color(i) {
+            if (search && name(i).includes(search)) return 'rgb(230, 0, 230)';
+            if (methods[i] < 0) return 'rgb(190, 190, 190)';
+            let hash = 0;
+            for (const ch of name(i)) hash = (hash * 31 + ch.charCodeAt(0)) | 0;
+            return 'hsl(' + (Math.abs(hash) % 55) + ', 85%, ' + (55 + Math.abs(hash >> 8) % 15) + '%)';
+          }
 
-      fw.writeToFile(filename);
-    }
+          function escape(text) {
+            return text.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;');
+          }
 
-    private void writeStats(MethodData methodData, List<Long> selfDurations,
-        FileFactory<SortKey> fw,
-        int rowNumber) {
-      int callCount = selfDurations.size();
-      long sumDuration = selfDurations.stream()
-          .mapToLong(Long::longValue)
-          .sum();
-      List<Long> sortedMethodCalls = new ArrayList<>(selfDurations);
-      sortedMethodCalls.sort(Long::compare);
+          function render() {
+            const width = chart.clientWidth;
+            const frames = [];
+            for (let i = focus; i !== 0; i = parents[i]) frames.push([i, 0, width]);
+            frames.push([0, 0, width]);
+            const todo = [[focus, 0, width]];
+            while (todo.length > 0) {
+              const [i, x, w] = todo.pop();
+              if (i !== focus) frames.push([i, x, w]);
+              let childX = x;
+              for (const c of children[i]) {
+                const childWidth = value[i] > 0 ? value[c] / value[i] * w : 0;
+                if (childWidth >= 0.5) todo.push([c, childX, childWidth]);
+                childX += childWidth;
+              }
+            }
+            let maxDepth = 0;
+            for (const [i] of frames) maxDepth = Math.max(maxDepth, depth[i]);
+            const height = (maxDepth + 1) * frameHeight;
+            const svg = [];
+            for (const [i, x, w] of frames) {
+              const y = height - (depth[i] + 1) * frameHeight;
+              svg.push('<g data-frame="' + i + '"><rect x="' + x + '" y="' + y + '" width="' + w
+                + '" height="' + frameHeight + '" fill="' + color(i) + '"/>');
+              const chars = Math.floor((w - 6) / 7);
+              if (chars > 2) {
+                const label = name(i).length > chars ? name(i).substring(0, chars - 2) + '..' : name(i);
+                svg.push('<text x="' + (x + 3) + '" y="' + (y + 12) + '">' + escape(label) + '</text>');
+              }
+              svg.push('</g>');
+            }
+            chart.setAttribute('height', height);
+            chart.innerHTML = svg.join('');
+          }
 
-      long p50 = pDuration(sortedMethodCalls, 50);
-      long p90 = pDuration(sortedMethodCalls, 90);
-      long p95 = pDuration(sortedMethodCalls, 95);
-      long p99 = pDuration(sortedMethodCalls, 99);
+          function frameAt(event) {
+            const g = event.target.closest('g');
+            return g ? Number(g.dataset.frame) : -1;
+          }
 
-      fw.newLine(new SortKey(1, rowNumber))
-          .appendCsv(methodData.shortName())
-          .appendCsv(StatHelper.nanosToMillis(sumDuration))
-          .appendCsv(callCount)
-          .appendCsv(StatHelper.nanosToMillis(p50))
-          .appendCsv(StatHelper.nanosToMillis(p90))
-          .appendCsv(StatHelper.nanosToMillis(p95))
-          .appendCsv(StatHelper.nanosToMillis(p99));
+          chart.addEventListener('mousemove', event => {
+            const i = frameAt(event);
+            if (i < 0) return;
+            status.textContent = name(i) + ' - ' + (value[i] / 1e6).toFixed(3) + ' ms ('
+              + (100 * value[i] / value[0]).toFixed(2) + '%), self ' + (selfNs[i] / 1e6).toFixed(3) + ' ms';
+          });
+          chart.addEventListener('click', event => {
+            const i = frameAt(event);
+            if (i >= 0) {
+              focus = i;
+              render();
+            }
+          });
+          document.getElementById('reset').addEventListener('click', () => {
+            focus = 0;
+            render();
+          });
+          document.getElementById('search').addEventListener('input', event => {
+            search = event.target.value;
+            render();
+          });
+          window.addEventListener('resize', render);
+          render();
+          </script>
+          </body>
+          </html>""");
     }
 
-    private long pDuration(List<Long> sortedDurations, int pValue) {
-      var selfDuration = StatHelper.p(sortedDurations, pValue);
-      if (selfDuration == null) {
-        return 0;
+    private static void appendArray(ReportWriter html, String variable, int size,
+        IntToLongFunction values) {
+      ReportWriter.OutputLine line = html.newLine()
+          .append("const ").append(variable).append(" = [");
+      for (int i = 0; i < size; i++) {
+        if (i > 0 && i % 32 == 0) {
+          line = html.newLine();
+        }
+        line.append(values.applyAsLong(i)).append(",");
       }
-      return selfDuration;
+      html.newLine().append("];");
     }
 
-    private Map<MethodData, List<Long>> collectThreadLocalData(List<Datapoint> threadLocalCalls) {
-      List<Datapoint> sortedCalls = new ArrayList<>(threadLocalCalls);
-      sortedCalls.sort(Comparator.comparing(Datapoint::startNs));
+    private static String name(String[] names, int methodId) {
+      return methodId == CallPaths.UNTRACED_CALLS ? "<untraced>" : names[methodId];
+    }
+
+    /**
+     * Call stacks merged into a tree of frames, a frame is a {@link CallPaths call path} with the
+     * self time spent in it.
+     */
+    private static class StackTree {
 
-      Map<MethodData, List<Long>> selfDurations = new HashMap<>();
+      private final CallPaths paths = new CallPaths();
+      private long[] selfNs = new long[64];
 
-      for (int i = 0; i < sortedCalls.size(); i++) {
-        Datapoint callUnderInvestigation = sortedCalls.get(i);
-        long selfTime = calculateSelfTime(sortedCalls, callUnderInvestigation, i);
-        selfDurations.computeIfAbsent(callUnderInvestigation.method(), k -> new ArrayList<>())
-            .add(selfTime);
+      int size() {
+        return paths.size();
       }
 
-      return selfDurations;
-    }
+      int parent(int frame) {
+        return paths.parent(frame);
+      }
 
-    private long calculateSelfTime(List<Datapoint> sortedCalls,
-        Datapoint callUnderInvestigation, int startIndex) {
-      long sumSubCalls = 0L;
-      long ignoreCallsUntilNs = callUnderInvestigation.startNs();
+      int methodId(int frame) {
+        return paths.methodId(frame);
+      }
 
-      int index = startIndex + 1;
-      long endNs = callUnderInvestigation.endNs();
-      while (index < sortedCalls.size()) {
-        Datapoint call = sortedCalls.get(index);
-        index++;
+      long selfNs(int frame) {
+        return selfNs[frame];
+      }
 
-        if (call.calledAfter(endNs)) {
-          // exit loop
-          break;
-        }
+      int child(int parent, int methodId) {
+        int frame = paths.child(parent, methodId);
+        ensureCapacity();
+        return frame;
+      }
 
-        if (call.startNs() <= ignoreCallsUntilNs) {
-          continue;
+      void addSelfNs(int frame, long ns) {
+        selfNs[frame] += ns;
+      }
+
+      StackTree merge(StackTree other) {
+        int[] mergedFrames = paths.merge(other.paths);
+        ensureCapacity();
+        for (int frame = 1; frame < other.size(); frame++) {
+          selfNs[mergedFrames[frame]] += other.selfNs[frame];
         }
+        return this;
+      }
 
-        sumSubCalls += call.durationNs();
-        ignoreCallsUntilNs = call.endNs();
+      /**
+       * Stacks from the innermost frame to the outermost, weighted with the self time of the
+       * innermost frame.
+       */
+      StackTree reversed() {
+        StackTree reversed = new StackTree();
+        for (int frame = 1; frame < size(); frame++) {
+          if (selfNs[frame] == 0) {
+            continue;
+          }
+          int reversedFrame = CallPaths.ROOT;
+          for (int caller = frame; caller != CallPaths.ROOT; caller = parent(caller)) {
+            reversedFrame = reversed.child(reversedFrame, methodId(caller));
+          }
+          reversed.addSelfNs(reversedFrame, selfNs[frame]);
+        }
+        return reversed;
       }
 
-      return callUnderInvestigation.durationNs() - sumSubCalls;
+      private void ensureCapacity() {
+        if (paths.size() > selfNs.length) {
+          selfNs = Arrays.copyOf(selfNs, Math.max(paths.size(), selfNs.length * 2));
+        }
+      }
     }
   }
 
-  private static class FlatAnalyzer {
+  /**
+   * Writes every call as it is parsed as a complete event of the Chrome trace event format, which
+   * chrome://tracing and Perfetto show as one timeline per thread. Nothing but the thread ids is
+   * kept, so the size of the trace does not matter. Times are the microseconds of
+   * {@link System#nanoTime()} of the traced application.
+   */
+  private static class TimelineWriter implements CallConsumer, AutoCloseable {
+
+    private static final int FILTERED = -1;
+
+    private final ReportWriter json;
+    private final Pattern threadFilter;
+    // timeline id per thread, FILTERED if the thread does not match the filter
+    private final Map<ThreadData, Integer> threadIds = new HashMap<>();
+    private boolean firstEvent = true;
+
+    /**
+     * @param threadFilter only threads with a matching name are written, {@code null} for all
+     */
+    TimelineWriter(String filename, String threadFilter) {
+      this.threadFilter = threadFilter != null ? Pattern.compile(threadFilter) : null;
+      this.json = new ReportWriter(filename);
+      json.newLine().append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    }
 
-    private record SortKey(
-        long startNs,
-        int row
-    ) {
+    @Override
+    public void accept(CallColumns calls, int index, boolean inTimeWindow) {
+      if (!inTimeWindow) {
+        return;
+      }
+      int threadId = threadId(calls.thread(index));
+      if (threadId == FILTERED) {
+        return;
+      }
 
-      public static SortKey header() {
-        return new SortKey(0, 0);
+      ReportWriter.OutputLine event = newEvent()
+          .append("{\"name\":").appendJson(calls.method(index).shortName())
+          .append(",\"cat\":\"call\",\"ph\":\"X\",\"ts\":");
+      appendMicros(event, calls.startNs(index));
+      event.append(",\"dur\":");
+      appendMicros(event, calls.durationNs(index));
+      event.append(",\"pid\":1,\"tid\":").append(threadId);
+      int weight = calls.weight(index);
+      int untracedCount = calls.untracedCount(index);
+      if (weight > 1 || untracedCount > 0) {
+        event.append(",\"args\":{\"weight\":").append(weight)
+            .append(",\"untracedCount\":").append(untracedCount)
+            .append(",\"untracedNs\":").append(calls.untracedNs(index)).append("}");
       }
+      event.append("}");
     }
 
-    void analyze(ConfigHelper config, DataContainer dataContainer) {
-      String filename = config.requiredValue("output");
-
-      FileFactory<SortKey> fw = new FileFactory<>(
-          Comparator.comparing(SortKey::startNs)
-              .thenComparing(SortKey::row));
-
-      // write header
-      fw.newLine(SortKey.header())
-          .append("signature;sumDuration;callCount;p50;p90;p95;p99\n");
-
-      Map<MethodData, List<Datapoint>> callData = dataContainer.data()
-          .stream()
-          .collect(Collectors.groupingBy(Datapoint::method));
-
-      int row = 100;
-      for (Entry<MethodData, List<Datapoint>> methodCallData : callData.entrySet()) {
-        writeStats(methodCallData, fw, row);
-        row++;
+    private int threadId(ThreadData thread) {
+      Integer threadId = threadIds.get(thread);
+      if (threadId == null) {
+        if (threadFilter != null && !threadFilter.matcher(thread.threadName()).find()) {
+          threadId = FILTERED;
+        } else {
+          threadId = threadIds.size() + 1;
+          newEvent()
+              .append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(threadId)
+              .append(",\"args\":{\"name\":").appendJson(thread.threadName()).append("}}");
+        }
+        threadIds.put(thread, threadId);
       }
+      return threadId;
+    }
 
-      fw.writeToFile(filename);
+    private ReportWriter.OutputLine newEvent() {
+      ReportWriter.OutputLine line = json.newLine();
+      if (!firstEvent) {
+        line.append(",");
+      }
+      firstEvent = false;
+      return line;
     }
 
-    private void writeStats(Entry<MethodData, List<Datapoint>> methodCallData,
-        FileFactory<SortKey> fw,
-        int rowNumber) {
-      MethodData methodData = methodCallData.getKey();
-      List<Datapoint> methodCalls = methodCallData.getValue();
-      int callCount = methodCalls.size();
-      long sumDuration = methodCalls.stream()
-          .mapToLong(Datapoint::durationNs)
-          .sum();
-      long minStartNs = methodCalls.stream()
-          .mapToLong(Datapoint::startNs)
-          .min()
-          .orElseThrow();
-      List<Datapoint> sortedMethodCalls = new ArrayList<>(methodCalls);
-      sortedMethodCalls.sort(Comparator.comparing(Datapoint::durationNs));
-
-      long p50 = pDuration(sortedMethodCalls, 50);
-      long p90 = pDuration(sortedMethodCalls, 90);
-      long p95 = pDuration(sortedMethodCalls, 95);
-      long p99 = pDuration(sortedMethodCalls, 99);
-
-      fw.newLine(new SortKey(minStartNs, rowNumber))
-          .appendCsv(methodData.shortName())
-          .appendCsv(StatHelper.nanosToMillis(sumDuration))
-          .appendCsv(callCount)
-          .appendCsv(StatHelper.nanosToMillis(p50))
-          .appendCsv(StatHelper.nanosToMillis(p90))
-          .appendCsv(StatHelper.nanosToMillis(p95))
-          .appendCsv(StatHelper.nanosToMillis(p99));
+    private static void appendMicros(ReportWriter.OutputLine line, long nanoSeconds) {
+      long micros = Math.floorDiv(nanoSeconds, 1_000L);
+      int fraction = (int) Math.floorMod(nanoSeconds, 1_000L);
+      line.append(micros).append(".").append(fraction < 10 ? "00" : fraction < 100 ? "0" : "")
+          .append(fraction);
     }
 
-    private long pDuration(List<Datapoint> sortedMethodCalls, int pValue) {
-      var datapoint = StatHelper.p(sortedMethodCalls, pValue);
-      if (datapoint == null) {
-        return 0;
-      }
-      return datapoint.durationNs();
+    @Override
+    public void close() {
+      json.newLine().append("]}");
+      json.close();
     }
   }
 
-  private static class DataContainer {
+  /**
+   * Compares the statistics of a trace with those of a baseline trace, e.g. of the same load test
+   * before a release. Methods are aligned by their signature, sub calls by their caller and
+   * signature. Methods are ranked by the increase of their total duration, each one followed by
+   * its sub calls ranked the same way. Methods found in one trace only are flagged as new or
+   * removed.
+   */
+  private static class DiffAnalyzer {
+
+    private static final MethodStats NO_CALLS = new MethodStats(1);
+
+    public void write(String filename, Map<MethodData, MethodStats> stats,
+        Map<MethodData, MethodStats> baselineStats) {
+      Set<MethodData> methods = new HashSet<>(stats.keySet());
+      methods.addAll(baselineStats.keySet());
+      List<MethodData> rankedMethods = ranked(methods,
+          method -> sum(stats.get(method)) - sum(baselineStats.get(method)));
+
+      int newMethods = 0;
+      int removedMethods = 0;
+      try (ReportWriter output = new ReportWriter(filename)) {
+        output.newLine().append("status;caller;method;callCount;baselineCallCount;deltaCallCount;"
+            + "sumMs;baselineSumMs;deltaSumMs;selfMs;baselineSelfMs;deltaSelfMs;p50;baselineP50;"
+            + "deltaP50;p90;baselineP90;deltaP90;p99;baselineP99;deltaP99");
+        for (MethodData method : rankedMethods) {
+          MethodStats methodStats = stats.getOrDefault(method, NO_CALLS);
+          MethodStats baselineMethodStats = baselineStats.getOrDefault(method, NO_CALLS);
+          String status = status(methodStats, baselineMethodStats);
+          newMethods += status.equals("new") ? 1 : 0;
+          removedMethods += status.equals("removed") ? 1 : 0;
+          ReportWriter.OutputLine line = output.newLine()
+              .appendCsv(status)
+              .appendCsv("")
+              .appendCsv(method.shortName());
+          appendDiff(line, methodStats.durations(), baselineMethodStats.durations());
+          appendDelta(line, methodStats.selfDurations().sum(),
+              baselineMethodStats.selfDurations().sum());
+          appendPercentiles(line, methodStats.durations(), baselineMethodStats.durations());
+
+          Map<MethodData, SubCallStats> subCalls = methodStats.subCalls();
+          Map<MethodData, SubCallStats> baselineSubCalls = baselineMethodStats.subCalls();
+          Set<MethodData> subMethods = new HashSet<>(subCalls.keySet());
+          subMethods.addAll(baselineSubCalls.keySet());
+          for (MethodData subMethod : ranked(subMethods,
+              subMethod -> sum(subCalls.get(subMethod)) - sum(baselineSubCalls.get(subMethod)))) {
+            DurationHistogram durations = durations(subCalls.get(subMethod));
+            DurationHistogram baselineDurations = durations(baselineSubCalls.get(subMethod));
+            ReportWriter.OutputLine subCallLine = output.newLine()
+                .appendCsv(status(durations, baselineDurations))
+                .appendCsv(method.shortName())
+                .appendCsv(subMethod.shortName());
+            appendDiff(subCallLine, durations, baselineDurations);
+            // sub calls have no self time
+            subCallLine.appendCsv("").appendCsv("").appendCsv("");
+            appendPercentiles(subCallLine, durations, baselineDurations);
+          }
+        }
+      }
+      System.out.println(newMethods + " methods were only called in -file, " + removedMethods
+          + " only in -baseline.");
+    }
 
-    private final ThreadRepository threadRepository = new ThreadRepository();
-    private final MethodRepository methodRepository = new MethodRepository();
-    private final List<Datapoint> data = new ArrayList<>();
+    private static List<MethodData> ranked(Set<MethodData> methods,
+        ToLongFunction<MethodData> regressionNs) {
+      List<MethodData> result = new ArrayList<>(methods);
+      result.sort(Comparator.comparingLong(regressionNs).reversed()
+          .thenComparing(MethodData::signature));
+      return result;
+    }
 
-    public List<Datapoint> data() {
-      return data;
+    private static long sum(MethodStats methodStats) {
+      return methodStats != null ? methodStats.durations().sum() : 0;
     }
 
-    public DataContainer parseFile(ConfigHelper config) {
-      String filename = config.requiredValue("file");
-      File file = new File(filename);
-      try (LineNumberReader lnr = new LineNumberReader(
-          new FileReader(file, StandardCharsets.UTF_8))) {
+    private static long sum(SubCallStats subCallStats) {
+      return subCallStats != null ? subCallStats.durations().sum() : 0;
+    }
 
-        String line;
-        while ((line = lnr.readLine()) != null) {
-          RawDatapoint datapoint = parseLine(line);
+    private static DurationHistogram durations(SubCallStats subCallStats) {
+      return subCallStats != null ? subCallStats.durations() : NO_CALLS.durations();
+    }
 
-          ThreadData thread = threadRepository.find(datapoint.threadHashCode, datapoint.threadName);
-          MethodData method = methodRepository.find(datapoint.signature);
+    private static String status(MethodStats methodStats, MethodStats baselineMethodStats) {
+      return status(methodStats.durations(), baselineMethodStats.durations());
+    }
 
-          data.add(new Datapoint(datapoint.startNs, datapoint.durationNs, method, thread));
-        }
-      } catch (IOException ex) {
-        ex.printStackTrace(System.err);
+    private static String status(DurationHistogram durations,
+        DurationHistogram baselineDurations) {
+      if (baselineDurations.count() == 0) {
+        return "new";
       }
+      return durations.count() == 0 ? "removed" : "both";
+    }
 
-      return this;
+    /**
+     * Appends call count and sum.
+     */
+    private static void appendDiff(ReportWriter.OutputLine line, DurationHistogram durations,
+        DurationHistogram baselineDurations) {
+      line.appendCsv(durations.count())
+          .appendCsv(baselineDurations.count())
+          .appendCsv(durations.count() - baselineDurations.count());
+      appendDelta(line, durations.sum(), baselineDurations.sum());
     }
 
-    private RawDatapoint parseLine(String line) {
-      String[] parts = line.split(";", 5);
-      long startNs = Long.parseLong(parts[0]);
-      long durationNs = Long.parseLong(parts[1]);
-      String signature = parts[2];
-      int threadHashCode = Integer.parseInt(parts[3]);
-      String threadName = parts[4];
+    private static void appendPercentiles(ReportWriter.OutputLine line,
+        DurationHistogram durations, DurationHistogram baselineDurations) {
+      for (double percent : new double[]{50, 90, 99}) {
+        appendDelta(line, durations.p(percent), baselineDurations.p(percent));
+      }
+    }
 
-      return new RawDatapoint(startNs, durationNs, signature, threadHashCode, threadName);
+    private static void appendDelta(ReportWriter.OutputLine line, long valueNs,
+        long baselineNs) {
+      line.appendCsv(StatHelper.formatMillis(valueNs))
+          .appendCsv(StatHelper.formatMillis(baselineNs))
+          .appendCsv(StatHelper.formatMillis(valueNs - baselineNs));
     }
   }
 
-  private static class ThreadRepository {
+  /**
+   * Call rate, total duration and percentiles per method and bucket of {@code -bucketMs} of
+   * wall-clock time, written while the trace is parsed. A call counts for the bucket it ended in.
+   * The calls are written about in the order they end, so a bucket is written once a call ended
+   * {@code -lateMs} after it, only the open buckets are kept. Calls of a bucket that was written
+   * already are counted as late. Files without a clock record are bucketed by the
+   * {@link System#nanoTime()} of the traced application.
+   */
+  private static class TimeSeriesWriter implements CallConsumer, AutoCloseable {
+
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+    private final ReportWriter output;
+    private final boolean html;
+    private final int precision;
+    private final long bucketMs;
+    private final long lateMs;
+    // durations per method of the buckets that were not written yet, by bucket number
+    private final TreeMap<Long, Map<MethodData, DurationHistogram>> openBuckets = new TreeMap<>();
+    // index of the methods in the chart
+    private final Map<MethodData, Integer> chartMethods = new LinkedHashMap<>();
+    private long clockEpochMillis = 0;
+    private long clockNanoTime = 0;
+    private long maxEndEpochMillis = Long.MIN_VALUE;
+    private long firstOpenBucket = Long.MIN_VALUE;
+    private long lateCalls = 0;
+
+    TimeSeriesWriter(String filename, int precision, long bucketMs, long lateMs) {
+      if (bucketMs < 1 || lateMs < 0) {
+        throw new IllegalArgumentException("-bucketMs must be positive, -lateMs must not be "
+            + "negative");
+      }
+      this.output = new ReportWriter(filename);
+      this.html = filename.endsWith(".html");
+      this.precision = precision;
+      this.bucketMs = bucketMs;
+      this.lateMs = lateMs;
+      if (html) {
+        writeHtmlHeader();
+      } else {
+        output.newLine().append("time;method;calls;callsPerSecond;sumMs;p50Ms;p99Ms");
+      }
+    }
 
-    private final Map<String, List<ThreadData>> data = new HashMap<>();
+    @Override
+    public void clock(long epochMillis, long nanoTime) {
+      clockEpochMillis = epochMillis;
+      clockNanoTime = nanoTime;
+    }
 
-    public ThreadData find(int threadHashCode, String threadName) {
-      List<ThreadData> list = data.get(threadName);
-      if (list == null) {
-        ArrayList<ThreadData> newList = new ArrayList<>();
-        newList.add(new ThreadData(threadHashCode, threadName));
-        data.put(threadName, newList);
-        return newList.getFirst();
+    @Override
+    public void accept(CallColumns calls, int index, boolean inTimeWindow) {
+      if (!inTimeWindow) {
+        return;
+      }
+      long endEpochMillis = clockEpochMillis
+          + Math.floorDiv(calls.endNs(index) - clockNanoTime, 1_000_000L);
+      long bucket = Math.floorDiv(endEpochMillis, bucketMs);
+      if (bucket < firstOpenBucket) {
+        lateCalls += calls.weight(index);
+        return;
+      }
+      openBuckets.computeIfAbsent(bucket, key -> new HashMap<>())
+          .computeIfAbsent(calls.method(index), key -> new DurationHistogram(precision))
+          .add(calls.durationNs(index), calls.weight(index));
+
+      if (endEpochMillis > maxEndEpochMillis) {
+        maxEndEpochMillis = endEpochMillis;
+        writeBuckets(Math.floorDiv(endEpochMillis - lateMs, bucketMs));
+      }
+    }
+
+    /**
+     * Writes the buckets before the given one.
+     */
+    private void writeBuckets(long toBucket) {
+      while (!openBuckets.isEmpty() && openBuckets.firstKey() < toBucket) {
+        Entry<Long, Map<MethodData, DurationHistogram>> bucket = openBuckets.pollFirstEntry();
+        writeBucket(bucket.getKey() * bucketMs, bucket.getValue());
+      }
+      firstOpenBucket = Math.max(firstOpenBucket, toBucket);
+    }
+
+    private void writeBucket(long fromEpochMillis,
+        Map<MethodData, DurationHistogram> durationsPerMethod) {
+      List<Entry<MethodData, DurationHistogram>> methods =
+          new ArrayList<>(durationsPerMethod.entrySet());
+      methods.sort(Comparator.comparingLong(
+          (Entry<MethodData, DurationHistogram> entry) -> entry.getValue().sum()).reversed());
+      String time = TIME_FORMAT.format(LocalDateTime.ofInstant(
+          Instant.ofEpochMilli(fromEpochMillis), ZoneId.systemDefault()));
+      for (Entry<MethodData, DurationHistogram> method : methods) {
+        DurationHistogram durations = method.getValue();
+        if (html) {
+          int chartMethod = chartMethods.computeIfAbsent(method.getKey(),
+              key -> chartMethods.size());
+          output.newLine().append("[").append(fromEpochMillis).append(",").append(chartMethod)
+              .append(",").append(durations.count()).append(",").append(durations.sum())
+              .append(",").append(durations.p(50)).append(",").append(durations.p(99))
+              .append("],");
+        } else {
+          output.newLine()
+              .appendCsv(time)
+              .appendCsv(method.getKey().shortName())
+              .appendCsv(durations.count())
+              .appendCsv(String.format(Locale.ROOT, "%.3f", durations.count() * 1000.0 / bucketMs))
+              .appendCsv(StatHelper.formatMillis(durations.sum()))
+              .appendCsv(StatHelper.formatMillis(durations.p(50)))
+              .appendCsv(StatHelper.formatMillis(durations.p(99)));
+        }
+      }
+    }
+
+    private void writeHtmlHeader() {
+      output.newLine().append("""
+          <!DOCTYPE html>
+          <html lang="en">
+          <head>
+            <title>Time series</title>
+            <meta charset="UTF-8">
+            <style>
+              body { font-family: OttoSans, Arial, Helvetica, sans-serif; font-size: 14px }
+              #chart { width: 100%; }
+              #chart text { font-size: 11px; fill: #555 }
+              #chart polyline { fill: none; stroke-width: 1.5 }
+              #status { height: 20px; white-space: nowrap; overflow: hidden }
+              #legend span { display: inline-block; margin-right: 16px }
+            </style>
+          </head>
+          <body>""");
+      output.newLine().append("<h3>Time series per ").append(bucketMs).append(" ms</h3>");
+      output.newLine().append("""
+          <div>
+            <select id="metric">
+              <option value="rate">Calls per second</option>
+              <option value="sum">Total ms</option>
+              <option value="p50">p50 ms</option>
+              <option value="p99">p99 ms</option>
+            </select>
+            <input id="filter" placeholder="Filter methods">
+          </div>
+          <div id="status"></div>
+          <svg id="chart" height="400"></svg>
+          <div id="legend"></div>
+          <script>""");
+      output.newLine().append("const bucketMs = ").append(bucketMs).append(";");
+      // bucket start, method, calls, sum, p50 and p99 in ns
+      output.newLine().append("const rows = [");
+    }
+
+    private void writeHtmlFooter() {
+      output.newLine().append("];");
+      output.newLine().append("const names = [");
+      for (MethodData method : chartMethods.keySet()) {
+        output.newLine().appendJson(method.shortName()).append(",");
+      }
+      output.newLine().append("];");
+      output.newLine().append("""
+          const maxLines = 10;
+          const colors = ['#1f77b4', '#ff7f0e', '#2ca02c', '#d62728', '#9467bd', '#8c564b', '#e377c2',
+            '#7f7f7f', '#bcbd22', '#17becf'];
+          const metrics = {
+            rate: row => row[2] * 1000 / bucketMs,
+            sum: row => row[3] / 1e6,
+            p50: row => row[4] / 1e6,
+            p99: row => row[5] / 1e6
+          };
+          const times = [...new Set(rows.map(row => row[0]))].sort((a, b) => a - b);
+          const totals = new Float64Array(names.length);
+          for (const row of rows) totals[row[1]] += row[3];
+          const chart = document.getElementById('chart');
+          const status = document.getElementById('status');
+          const metricSelect = document.getElementById('metric');
+          const filterInput = document.getElementById('filter');
+          let shown = [];
+          let values = [];
+
+          function escape(text) {
+            return text.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;');
+          }
+
+          function format(value) {
+            return value >= 100 ? value.toFixed(0) : value >= 1 ? value.toFixed(2) : value.toFixed(3);
+          }
+
+          function render() {
+            const metric = metricSelect.value;
+            // a method without calls in a bucket has no percentiles, but a rate and sum of 0
+            const missing = metric === 'rate' || metric === 'sum' ? 0 : undefined;
+            shown = names.map((name, i) => i).filter(i => names[i].includes(filterInput.value))
+              .sort((a, b) => totals[b] - totals[a]).slice(0, maxLines);
+            values = shown.map(() => new Map());
+            for (const row of rows) {
+              const line = shown.indexOf(row[1]);
+              if (line >= 0) values[line].set(row[0], metrics[metric](row));
+            }
+            let max = 0;
+            for (const lineValues of values) for (const value of lineValues.values()) max = Math.max(max, value);
+            max = max || 1;
+            const width = chart.clientWidth;
+            const height = 400;
+            const left = 60;
+            const bottom = 20;
+            const first = times[0] || 0;
+            const span = (times[times.length - 1] - first) || 1;
+            const x = time => left + (time - first) / span * (width - left - 10);
+            const y = value => height - bottom - value / max * (height - bottom - 10);
+            const svg = [];
+            for (const fraction of [0, 0.25, 0.5, 0.75, 1]) {
+              svg.push('<line x1="' + left + '" x2="' + width + '" y1="' + y(max * fraction) + '" y2="'
+                + y(max * fraction) + '" stroke="#eee"/>');
+              svg.push('<text x="2" y="' + (y(max * fraction) + 4) + '">' + format(max * fraction) + '</text>');
+            }
+            const labels = Math.max(1, Math.floor((width - left) / 140));
+            for (let i = 0; i < labels; i++) {
+              const time = first + span * i / labels;
+              svg.push('<text x="' + x(time) + '" y="' + (height - 4) + '">'
+                + new Date(time).toLocaleTimeString() + '</text>');
+            }
+            shown.forEach((method, line) => {
+              let points = [];
+              const flush = () => {
+                if (points.length > 0) {
+                  svg.push('<polyline stroke="' + colors[line] + '" points="' + points.join(' ') + '"/>');
+                }
+                points = [];
+              };
+              for (const time of times) {
+                const value = values[line].has(time) ? values[line].get(time) : missing;
+                if (value === undefined) {
+                  flush();
+                } else {
+                  points.push(x(time) + ',' + y(value));
+                }
+              }
+              flush();
+            });
+            svg.push('<line id="cursor" y1="0" y2="' + (height - bottom) + '" stroke="#999" visibility="hidden"/>');
+            chart.innerHTML = svg.join('');
+            document.getElementById('legend').innerHTML = shown.map((method, line) =>
+              '<span style="color: ' + colors[line] + '">' + escape(names[method]) + '</span>').join('');
+            chart.onmousemove = event => {
+              const mouseX = event.clientX - chart.getBoundingClientRect().left;
+              let nearest = first;
+              for (const time of times) if (Math.abs(x(time) - mouseX) < Math.abs(x(nearest) - mouseX)) nearest = time;
+              const cursor = document.getElementById('cursor');
+              cursor.setAttribute('x1', x(nearest));
+              cursor.setAttribute('x2', x(nearest));
+              cursor.setAttribute('visibility', 'visible');
+              status.textContent = new Date(nearest).toLocaleString() + ' - ' + shown
+                .filter((method, line) => values[line].has(nearest))
+                .map(method => names[method] + ': ' + format(values[shown.indexOf(method)].get(nearest)))
+                .join(', ');
+            };
+          }
+
+          metricSelect.addEventListener('change', render);
+          filterInput.addEventListener('input', render);
+          window.addEventListener('resize', render);
+          render();
+          </script>
+          </body>
+          </html>""");
+    }
+
+    @Override
+    public void close() {
+      writeBuckets(Long.MAX_VALUE);
+      if (html) {
+        writeHtmlFooter();
+      }
+      output.close();
+      if (lateCalls > 0) {
+        System.out.println("Warning: " + lateCalls + " calls ended after their bucket was "
+            + "written, increase -lateMs to include them.");
+      }
+    }
+  }
+
+  /**
+   * Statistics per call path instead of per method, e.g. a method called from two endpoints gets
+   * two rows. The calls are nested like in {@link TreeTimeAnalyzer}. Calls deeper than
+   * {@code -maxDepth} are counted as self time of their ancestor at that depth. With
+   * {@code -collapseRecursion true} a call of a method that is already on the path is folded into
+   * the outer call: it is not counted itself, its self time is added to the outer call and its sub
+   * calls continue the path of the outer call.
+   */
+  private static class CallPathAnalyzer {
+
+    private final int precision;
+    private final int maxDepth;
+    private final boolean collapseRecursion;
+
+    CallPathAnalyzer(int precision, int maxDepth, boolean collapseRecursion) {
+      if (maxDepth < 1) {
+        throw new IllegalArgumentException("-maxDepth must be positive");
+      }
+      this.precision = precision;
+      this.maxDepth = maxDepth;
+      this.collapseRecursion = collapseRecursion;
+    }
+
+    public PathStats collect(DataContainer dataContainer) {
+      CallColumns calls = dataContainer.data();
+      return CallTree.collect(calls, dataContainer.threads(),
+          (callTree, from, to) -> new PathCollector(calls, callTree).collect(from, to),
+          PathStats::merge);
+    }
+
+    public void write(ConfigHelper config, PathStats pathStats, DataContainer dataContainer) {
+      String filename = config.requiredValue("output");
+      CallColumns calls = dataContainer.data();
+      int[][] children = pathStats.sortedChildren();
+      long sum = 0;
+      for (int path : children[CallPaths.ROOT]) {
+        sum += pathStats.stats(path).durations().sum();
+      }
+
+      try (ReportWriter output = new ReportWriter(filename)) {
+        boolean html = filename.endsWith(".html");
+        if (html) {
+          writeHtmlHeader(output);
+        } else {
+          output.newLine()
+              .append("id;parentId;depth;method;sumMs;percent;selfMs;callCount;median;p90;p95;p99;"
+                  + "p999;max");
+        }
+
+        // depth first, the open paths and the index of their next child
+        int[] openPaths = new int[64];
+        int[] nextChilds = new int[64];
+        int depth = 0;
+        openPaths[0] = CallPaths.ROOT;
+        while (depth >= 0) {
+          int[] pathChildren = children[openPaths[depth]];
+          if (nextChilds[depth] == pathChildren.length) {
+            if (html && depth > 0) {
+              output.newLine().append(pathChildren.length > 0 ? "</details>" : "</div>");
+            }
+            depth--;
+            continue;
+          }
+          int path = pathChildren[nextChilds[depth]++];
+          String method = pathStats.paths().methodId(path) == CallPaths.UNTRACED_CALLS
+              ? "<untraced>"
+              : calls.methodById(pathStats.paths().methodId(path)).shortName();
+          if (html) {
+            writeHtmlPath(output, path, method, pathStats, children[path].length > 0, sum);
+          } else {
+            writeCsvPath(output, path, method, pathStats, sum);
+          }
+          depth++;
+          if (depth == openPaths.length) {
+            openPaths = Arrays.copyOf(openPaths, depth * 2);
+            nextChilds = Arrays.copyOf(nextChilds, depth * 2);
+          }
+          openPaths[depth] = path;
+          nextChilds[depth] = 0;
+        }
+
+        if (html) {
+          output.newLine().append("""
+              </body>
+              </html>""");
+        }
+      }
+    }
+
+    private void writeHtmlHeader(ReportWriter html) {
+      html.newLine().append("""
+          <!DOCTYPE html>
+          <html lang="en">
+          <head>
+            <title>Call paths</title>
+            <meta charset="UTF-8">
+            <style>
+              body { font-family: OttoSans, Arial, Helvetica, sans-serif; font-size: 14px }
+              details, div.leaf { margin-left: 24px }
+              div.leaf { padding-left: 14px }
+              summary, div.leaf { padding: 2px; white-space: nowrap }
+              span.stats { color: rgb(96, 96, 96) }
+            </style>
+          </head>
+          <body>
+          <p>Click a call path to expand it. Times in ms, sub paths sorted by their sum.</p>""");
+    }
+
+    private void writeHtmlPath(ReportWriter html, int path, String method, PathStats pathStats,
+        boolean hasChildren, long sum) {
+      MethodStats stats = pathStats.stats(path);
+      DurationHistogram durations = stats.durations();
+      DurationHistogram selfDurations = stats.selfDurations();
+      long percent = StatHelper.percent(durations.sum(), sum);
+      html.newLine()
+          .append(hasChildren ? "<details><summary>" : "<div class='leaf'>")
+          .append("<b>").append(HtmlHelper.escapeHtml(method)).append("</b> <span class='stats'>")
+          .append("sum ").append(HtmlHelper.toMs(durations.sum()))
+          .append(" (").append(HtmlHelper.format(percent)).append(" %)")
+          .append(", self ").append(HtmlHelper.toMs(selfDurations.sum()))
+          .append(", calls ").append(HtmlHelper.format(durations.count()))
+          .append(", median ").append(HtmlHelper.toMs(durations.p(50)))
+          .append(", p90 ").append(HtmlHelper.toMs(durations.p(90)))
+          .append(", p95 ").append(HtmlHelper.toMs(durations.p(95)))
+          .append(", p99 ").append(HtmlHelper.toMs(durations.p(99)))
+          .append(", p99.9 ").append(HtmlHelper.toMs(durations.p(99.9)))
+          .append(", max ").append(HtmlHelper.toMs(durations.max()))
+          .append("</span>")
+          .append(hasChildren ? "</summary>" : "");
+    }
+
+    private void writeCsvPath(ReportWriter fw, int path, String method, PathStats pathStats,
+        long sum) {
+      MethodStats stats = pathStats.stats(path);
+      DurationHistogram durations = stats.durations();
+      CallPaths paths = pathStats.paths();
+      int depth = paths.depth(path);
+      fw.newLine()
+          .appendCsv(path)
+          .appendCsv(paths.parent(path))
+          .appendCsv(depth)
+          .appendCsv(".. ".repeat(depth - 1)).append(method)
+          .appendCsv(StatHelper.nanosToMillis(durations.sum()))
+          .appendCsv(StatHelper.percent(durations.sum(), sum))
+          .appendCsv(StatHelper.nanosToMillis(stats.selfDurations().sum()))
+          .appendCsv(durations.count())
+          .appendCsv(StatHelper.nanosToMillis(durations.p(50)))
+          .appendCsv(StatHelper.nanosToMillis(durations.p(90)))
+          .appendCsv(StatHelper.nanosToMillis(durations.p(95)))
+          .appendCsv(StatHelper.nanosToMillis(durations.p(99)))
+          .appendCsv(StatHelper.nanosToMillis(durations.p(99.9)))
+          .appendCsv(StatHelper.nanosToMillis(durations.max()));
+    }
+
+    /**
+     * Walks the calls of one thread in pre-order and keeps the open calls on a stack. The
+     * statistics of a call are added when it is closed, once the self time of the recursive calls
+     * folded into it is known.
+     */
+    private class PathCollector {
+
+      private final CallColumns calls;
+      private final CallTree callTree;
+      private final PathStats pathStats = new PathStats(precision);
+      // number of open calls per method
+      private final int[] openCalls;
+      // per open call
+      private int[] positions = new int[64];
+      private int[] subTreeEnds = new int[64];
+      private int[] paths = new int[64];
+      private long[] foldedSelfNs = new long[64];
+      private int[] foldedInto = new int[64];
+      private int depth = 0;
+
+      private PathCollector(CallColumns calls, CallTree callTree) {
+        this.calls = calls;
+        this.callTree = callTree;
+        this.openCalls = new int[calls.methodCount()];
+      }
+
+      private PathStats collect(int from, int to) {
+        for (int position = from; position < to; position++) {
+          while (depth > 0 && subTreeEnds[depth - 1] <= position) {
+            close();
+          }
+          int call = callTree.call(position);
+          int methodId = calls.methodId(call);
+          int outerCall = collapseRecursion && openCalls[methodId] > 0 ? outerCall(methodId) : -1;
+          if (outerCall < 0 && depth > 0 && pathStats.paths().depth(paths[depth - 1]) == maxDepth) {
+            // the whole sub tree is self time of the parent
+            foldedSelfNs[depth - 1] += calls.durationNs(call);
+            position = callTree.subTreeEnd(position) - 1;
+            continue;
+          }
+          open(position, methodId, outerCall);
+        }
+        while (depth > 0) {
+          close();
+        }
+        return pathStats;
+      }
+
+      private int outerCall(int methodId) {
+        for (int openCall = 0; openCall < depth; openCall++) {
+          if (foldedInto[openCall] < 0
+              && pathStats.paths().methodId(paths[openCall]) == methodId) {
+            return openCall;
+          }
+        }
+        return -1;
+      }
+
+      private void open(int position, int methodId, int outerCall) {
+        if (depth == positions.length) {
+          positions = Arrays.copyOf(positions, depth * 2);
+          subTreeEnds = Arrays.copyOf(subTreeEnds, depth * 2);
+          paths = Arrays.copyOf(paths, depth * 2);
+          foldedSelfNs = Arrays.copyOf(foldedSelfNs, depth * 2);
+          foldedInto = Arrays.copyOf(foldedInto, depth * 2);
+        }
+        int parentPath = depth > 0 ? paths[depth - 1] : CallPaths.ROOT;
+        positions[depth] = position;
+        subTreeEnds[depth] = callTree.subTreeEnd(position);
+        paths[depth] = outerCall >= 0
+            ? paths[outerCall]
+            : pathStats.paths().child(parentPath, methodId);
+        foldedSelfNs[depth] = 0;
+        foldedInto[depth] = outerCall;
+        openCalls[methodId]++;
+        depth++;
+      }
+
+      private void close() {
+        depth--;
+        int position = positions[depth];
+        int call = callTree.call(position);
+        int path = paths[depth];
+        int weight = calls.weight(call);
+        openCalls[calls.methodId(call)]--;
+
+        long selfNs = Math.max(0, callTree.selfNs(position)) + foldedSelfNs[depth];
+        if (calls.untracedCount(call) > 0) {
+          if (pathStats.paths().depth(path) == maxDepth) {
+            selfNs += calls.untracedNs(call);
+          } else {
+            MethodStats untraced = pathStats.stats(
+                pathStats.paths().child(path, CallPaths.UNTRACED_CALLS));
+            untraced.addDuration(calls.startNs(call), calls.untracedNs(call), weight);
+            untraced.addSelfDuration(calls.untracedNs(call), weight);
+          }
+        }
+        if (foldedInto[depth] >= 0) {
+          foldedSelfNs[foldedInto[depth]] += selfNs;
+          return;
+        }
+        MethodStats stats = pathStats.stats(path);
+        stats.addDuration(calls.startNs(call), calls.durationNs(call), weight);
+        stats.addSelfDuration(selfNs, weight);
+      }
+    }
+
+    /**
+     * Interned call paths with the statistics of their calls.
+     */
+    private static class PathStats {
+
+      private final int precision;
+      private final CallPaths paths = new CallPaths();
+      private MethodStats[] stats = new MethodStats[64];
+
+      private PathStats(int precision) {
+        this.precision = precision;
+      }
+
+      CallPaths paths() {
+        return paths;
+      }
+
+      MethodStats stats(int path) {
+        if (path >= stats.length) {
+          stats = Arrays.copyOf(stats, Math.max(path + 1, stats.length * 2));
+        }
+        if (stats[path] == null) {
+          stats[path] = new MethodStats(precision);
+        }
+        return stats[path];
+      }
+
+      PathStats merge(PathStats other) {
+        int[] mergedPaths = paths.merge(other.paths);
+        for (int path = 1; path < other.paths.size(); path++) {
+          if (path < other.stats.length && other.stats[path] != null) {
+            stats(mergedPaths[path]).merge(other.stats[path]);
+          }
+        }
+        return this;
+      }
+
+      /**
+       * Sub paths of every path, the slowest first.
+       */
+      int[][] sortedChildren() {
+        int[] childCounts = new int[paths.size()];
+        for (int path = 1; path < paths.size(); path++) {
+          childCounts[paths.parent(path)]++;
+        }
+        int[][] children = new int[paths.size()][];
+        for (int path = 0; path < paths.size(); path++) {
+          children[path] = new int[childCounts[path]];
+          childCounts[path] = 0;
+        }
+        for (int path = 1; path < paths.size(); path++) {
+          int parent = paths.parent(path);
+          children[parent][childCounts[parent]++] = path;
+        }
+        for (int[] pathChildren : children) {
+          Integer[] sorted = Arrays.stream(pathChildren).boxed().toArray(Integer[]::new);
+          Arrays.sort(sorted, Comparator
+              .comparingLong((Integer path) -> -stats(path).durations().sum())
+              .thenComparingInt(path -> path));
+          for (int i = 0; i < sorted.length; i++) {
+            pathChildren[i] = sorted[i];
+          }
+        }
+        return children;
+      }
+    }
+  }
+
+  private static class SelfTimeAnalyzer implements Analyzer {
+
+    private final int precision;
+
+    SelfTimeAnalyzer(int precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public Map<MethodData, MethodStats> collect(DataContainer dataContainer) {
+      CallColumns calls = dataContainer.data();
+      MethodStats[] selfDurations = CallTree.collect(calls, dataContainer.threads(),
+          (callTree, from, to) -> {
+            MethodStats[] threadSelfDurations = new MethodStats[calls.methodCount()];
+            for (int position = from; position < to; position++) {
+              int call = callTree.call(position);
+              int methodId = calls.methodId(call);
+              if (threadSelfDurations[methodId] == null) {
+                threadSelfDurations[methodId] = new MethodStats(precision);
+              }
+              threadSelfDurations[methodId].addSelfDuration(callTree.selfNs(position),
+                  calls.weight(call));
+            }
+            return threadSelfDurations;
+          },
+          MethodStats::merge);
+      return MethodStats.byMethod(calls, selfDurations);
+    }
+
+    @Override
+    public void write(ConfigHelper config, Map<MethodData, MethodStats> stats,
+        DataContainer dataContainer) {
+      String filename = config.requiredValue("output");
+
+      try (ReportWriter fw = new ReportWriter(filename)) {
+        // write header
+        fw.newLine()
+            .append("signature;sumDuration;callCount;p50;p90;p95;p99;p999;max;dropped");
+
+        for (Entry<MethodData, MethodStats> entry : stats.entrySet()) {
+          writeStats(entry.getKey(), entry.getValue().selfDurations(),
+              dataContainer.droppedCalls(entry.getKey()), fw);
+        }
+      }
+    }
+
+    private void writeStats(MethodData methodData, DurationHistogram selfDurations,
+        long droppedCalls,
+        ReportWriter fw) {
+      long callCount = selfDurations.count();
+      long sumDuration = selfDurations.sum();
+
+      long p50 = selfDurations.p(50);
+      long p90 = selfDurations.p(90);
+      long p95 = selfDurations.p(95);
+      long p99 = selfDurations.p(99);
+      long p999 = selfDurations.p(99.9);
+      long max = selfDurations.max();
+
+      fw.newLine()
+          .appendCsv(methodData.shortName())
+          .appendCsv(StatHelper.nanosToMillis(sumDuration))
+          .appendCsv(callCount)
+          .appendCsv(StatHelper.nanosToMillis(p50))
+          .appendCsv(StatHelper.nanosToMillis(p90))
+          .appendCsv(StatHelper.nanosToMillis(p95))
+          .appendCsv(StatHelper.nanosToMillis(p99))
+          .appendCsv(StatHelper.nanosToMillis(p999))
+          .appendCsv(StatHelper.nanosToMillis(max))
+          .appendCsv(droppedCalls);
+    }
+  }
+
+  private static class FlatAnalyzer implements Analyzer {
+
+    private final int precision;
+
+    FlatAnalyzer(int precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public Map<MethodData, MethodStats> collect(DataContainer dataContainer) {
+      CallColumns calls = dataContainer.data();
+      MethodStats[] callData = new MethodStats[calls.methodCount()];
+      for (int call = 0; call < calls.size(); call++) {
+        int methodId = calls.methodId(call);
+        if (callData[methodId] == null) {
+          callData[methodId] = new MethodStats(precision);
+        }
+        callData[methodId].addDuration(calls.startNs(call), calls.durationNs(call),
+            calls.weight(call));
+      }
+      return MethodStats.byMethod(calls, callData);
+    }
+
+    @Override
+    public void write(ConfigHelper config, Map<MethodData, MethodStats> stats,
+        DataContainer dataContainer) {
+      String filename = config.requiredValue("output");
+
+      // in the order of the first call of the methods
+      List<Entry<MethodData, MethodStats>> methods = new ArrayList<>(stats.entrySet());
+      methods.sort(Comparator.comparingLong(entry -> entry.getValue().minStartNs()));
+
+      try (ReportWriter fw = new ReportWriter(filename)) {
+        // write header
+        fw.newLine()
+            .append("signature;sumDuration;callCount;p50;p90;p95;p99;p999;max;dropped\n");
+
+        for (Entry<MethodData, MethodStats> methodCallData : methods) {
+          writeStats(methodCallData, dataContainer.droppedCalls(methodCallData.getKey()), fw);
+        }
+      }
+    }
+
+    private void writeStats(Entry<MethodData, MethodStats> methodCallData,
+        long droppedCalls,
+        ReportWriter fw) {
+      MethodData methodData = methodCallData.getKey();
+      long minStartNs = methodCallData.getValue().minStartNs();
+      DurationHistogram durations = methodCallData.getValue().durations();
+      long callCount = durations.count();
+      long sumDuration = durations.sum();
+
+      long p50 = durations.p(50);
+      long p90 = durations.p(90);
+      long p95 = durations.p(95);
+      long p99 = durations.p(99);
+      long p999 = durations.p(99.9);
+      long max = durations.max();
+
+      fw.newLine()
+          .appendCsv(methodData.shortName())
+          .appendCsv(StatHelper.nanosToMillis(sumDuration))
+          .appendCsv(callCount)
+          .appendCsv(StatHelper.nanosToMillis(p50))
+          .appendCsv(StatHelper.nanosToMillis(p90))
+          .appendCsv(StatHelper.nanosToMillis(p95))
+          .appendCsv(StatHelper.nanosToMillis(p99))
+          .appendCsv(StatHelper.nanosToMillis(p999))
+          .appendCsv(StatHelper.nanosToMillis(max))
+          .appendCsv(droppedCalls);
+    }
+  }
+
+  private static class DataContainer {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final CallColumns data = new CallColumns();
+    private final CallConsumer consumer;
+    private final Map<MethodData, Long> droppedCalls = new HashMap<>();
+    private long fromEpochMillis = Long.MIN_VALUE;
+    private long toEpochMillis = Long.MAX_VALUE;
+
+    // chunks are parsed in parallel, but merged in file order
+    private int threads;
+    private ForkJoinPool pool;
+    private int maxPendingChunks;
+    private long chunkSize;
+    private final Deque<CompletableFuture<ChunkParser>> pendingChunks = new ArrayDeque<>();
+    private final Set<File> filesWithoutClock = new HashSet<>();
+
+    private long parsedBytes = 0;
+    private long indexSkippedBytes = 0;
+    private long parsedLines = 0;
+    private long compressedBytes = 0;
+    private long uncompressedBytes = 0;
+    private final AtomicLong inflateCpuNs = new AtomicLong();
+
+    /**
+     * Keeps all calls in {@link #data()}.
+     */
+    DataContainer() {
+      this.consumer = (calls, index, inTimeWindow) -> {
+        if (inTimeWindow) {
+          data.add(calls, index);
+        }
+      };
+    }
+
+    /**
+     * Passes the calls to the consumer instead of keeping them.
+     */
+    DataContainer(CallConsumer consumer) {
+      this.consumer = consumer;
+    }
+
+    public CallColumns data() {
+      return data;
+    }
+
+    /**
+     * Number of threads to parse and analyze with.
+     */
+    public int threads() {
+      return threads;
+    }
+
+    public long droppedCalls(MethodData method) {
+      return droppedCalls.getOrDefault(method, 0L);
+    }
+
+    public DataContainer parseFile(ConfigHelper config) {
+      return parseFile(config, config.requiredValue("file"), "from", "to");
+    }
+
+    /**
+     * Parses the file or segment directory with the other settings of the config, the time window
+     * is taken from the given parameters.
+     */
+    public DataContainer parseFile(ConfigHelper config, String filename, String fromParameter,
+        String toParameter) {
+      File file = new File(filename);
+      fromEpochMillis = parseTime(config, fromParameter, Long.MIN_VALUE);
+      toEpochMillis = parseTime(config, toParameter, Long.MAX_VALUE);
+      threads = config.intValue("threads", Runtime.getRuntime().availableProcessors());
+      chunkSize = config.intValue("chunkSizeMb", 4) * (1L << 20);
+      if (threads < 1 || chunkSize < 1) {
+        throw new IllegalArgumentException("Parameters -threads and -chunkSizeMb must be positive");
+      }
+      pool = new ForkJoinPool(threads);
+      maxPendingChunks = 2 * threads;
+
+      long startNs = System.nanoTime();
+      try {
+        if (file.isDirectory()) {
+          parseSegmentDirectory(file);
+        } else {
+          parseSingleFile(file);
+        }
+        while (!pendingChunks.isEmpty()) {
+          mergeChunk(pendingChunks.removeFirst());
+        }
+      } catch (IOException ex) {
+        ex.printStackTrace(System.err);
+      } finally {
+        pool.shutdownNow();
+      }
+      long elapsedMs = Math.max(1, (System.nanoTime() - startNs) / 1_000_000L);
+      String lineRate = parsedLines == 0
+          ? ""
+          : String.format(Locale.ROOT, ", %d lines/s", parsedLines * 1000 / elapsedMs);
+      System.out.printf(Locale.ROOT, "Parsed %.1f MB in %d ms (%.1f MB/s%s) with %d threads.%n",
+          parsedBytes / (double) (1 << 20), elapsedMs,
+          parsedBytes / (double) (1 << 20) * 1000 / elapsedMs, lineRate, threads);
+      if (indexSkippedBytes > 0) {
+        System.out.printf(Locale.ROOT,
+            "Skipped the calls of %.1f MB outside of the requested time range using the trace "
+                + "index.%n",
+            indexSkippedBytes / (double) (1 << 20));
+      }
+
+      if (compressedBytes > 0) {
+        double uncompressedMb = uncompressedBytes / (double) (1 << 20);
+        System.out.printf(Locale.ROOT,
+            "Decompressed %.1f MB to %.1f MB (ratio %.2f), %.2f ms CPU per MB.%n",
+            compressedBytes / (double) (1 << 20), uncompressedMb,
+            uncompressedBytes / (double) compressedBytes,
+            inflateCpuNs.get() / 1e6 / uncompressedMb);
+      }
+
+      if (!droppedCalls.isEmpty()) {
+        long sum = droppedCalls.values().stream().mapToLong(Long::longValue).sum();
+        System.out.println("Warning: " + sum + " calls of " + droppedCalls.size()
+            + " methods were dropped while tracing, the results are incomplete.");
+      }
+
+      return this;
+    }
+
+    private void parseSegmentDirectory(File directory) throws IOException {
+      File[] segments = directory.listFiles((dir, name) -> name.endsWith(".trc"));
+      if (segments == null || segments.length == 0) {
+        throw new IOException("No trace segments found in " + directory);
+      }
+      Arrays.sort(segments, Comparator.comparing(File::getName));
+
+      Map<String, long[]> timeRanges = readManifest(directory);
+      int skipped = 0;
+      for (File segment : segments) {
+        // segments missing in the manifest were not finished yet, their time range is unknown
+        long[] timeRange = timeRanges.get(segment.getName());
+        if (timeRange != null
+            && (timeRange[1] < fromEpochMillis || timeRange[0] >= toEpochMillis)) {
+          skipped++;
+          continue;
+        }
+        parseSingleFile(segment);
+      }
+      if (skipped > 0) {
+        System.out.println("Skipped " + skipped + " of " + segments.length
+            + " segments outside of the requested time range.");
+      }
+    }
+
+    /**
+     * Returns {fromEpochMillis, toEpochMillis} per segment name.
+     */
+    private Map<String, long[]> readManifest(File directory) throws IOException {
+      Map<String, long[]> timeRanges = new HashMap<>();
+      File manifest = new File(directory, TraceFileFormat.MANIFEST_FILE_NAME);
+      if (!hasTimeWindow() || !manifest.isFile()) {
+        return timeRanges;
+      }
+      List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+      for (String line : lines.subList(1, lines.size())) {
+        String[] parts = line.split(";");
+        timeRanges.put(parts[0],
+            new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+      }
+      return timeRanges;
+    }
+
+    private static long parseTime(ConfigHelper config, String name, long defaultValue) {
+      String value = config.value(name);
+      if (value == null) {
+        return defaultValue;
+      }
+      try {
+        if (value.chars().allMatch(Character::isDigit)) {
+          return Long.parseLong(value);
+        }
+        return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant()
+            .toEpochMilli();
+      } catch (DateTimeParseException | NumberFormatException ex) {
+        throw new IllegalArgumentException("Parameter -" + name
+            + " is neither epoch millis nor a date-time like 2024-11-06T08:15: " + value);
+      }
+    }
+
+    private boolean hasTimeWindow() {
+      return fromEpochMillis != Long.MIN_VALUE || toEpochMillis != Long.MAX_VALUE;
+    }
+
+    private ChunkParser newChunkParser(File file) {
+      return newChunkParser(file, true);
+    }
+
+    /**
+     * @param withCalls {@code false} to count the dropped calls only
+     */
+    private ChunkParser newChunkParser(File file, boolean withCalls) {
+      return new ChunkParser(file, fromEpochMillis, toEpochMillis, withCalls);
+    }
+
+    /**
+     * Parses the chunk on the pool. Waits for the oldest chunk once too many are pending, so only
+     * a bounded part of the file is held in memory before it is merged.
+     */
+    private void submitChunk(ChunkParser parser, ChunkTask task) throws IOException {
+      pendingChunks.addLast(CompletableFuture.supplyAsync(() -> {
+        try {
+          task.parse(parser);
+          return parser;
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }, pool));
+      if (pendingChunks.size() >= maxPendingChunks) {
+        mergeChunk(pendingChunks.removeFirst());
+      }
+    }
+
+    private void mergeChunk(CompletableFuture<ChunkParser> pendingChunk) throws IOException {
+      ChunkParser chunk;
+      try {
+        chunk = pendingChunk.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof UncheckedIOException uncheckedIOException) {
+          throw uncheckedIOException.getCause();
+        }
+        if (ex.getCause() instanceof RuntimeException runtimeException) {
+          throw runtimeException;
+        }
+        throw ex;
+      }
+
+      // MethodData and ThreadData are values, the calls of all chunks are grouped together
+      // without mapping the instances of the chunk repositories
+      CallColumns calls = chunk.calls();
+      if (chunk.hasClock()) {
+        consumer.clock(chunk.clockEpochMillis(), chunk.clockNanoTime());
+      }
+      for (int i = 0; i < calls.size(); i++) {
+        consumer.accept(calls, i, chunk.isInTimeWindow(i));
+      }
+      chunk.droppedCalls().forEach((method, count) -> droppedCalls.merge(method, count, Long::sum));
+      parsedLines += chunk.csvLines();
+
+      if (hasTimeWindow() && !chunk.hasClock() && filesWithoutClock.add(chunk.file())) {
+        System.err.println("Trace file " + chunk.file() + " has no clock record, -from and -to "
+            + "are ignored for it.");
+      }
+    }
+
+    private void parseSingleFile(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(TraceFileFormat.SEGMENT_HEADER_LENGTH);
+        channel.read(header, 0);
+        header.flip();
+
+        int magic = header.remaining() >= TraceFileFormat.BINARY_HEADER_LENGTH
+            ? header.getInt(0)
+            : 0;
+        if (magic == TraceFileFormat.SEGMENT_MAGIC) {
+          // mapped segments are not indexed
+          parsedBytes += file.length();
+          int version = checkVersion(file, header.getInt(4));
+          long validLength = header.getLong(8);
+          submitChunk(newChunkParser(file), parser -> {
+            try (FileChannel chunkChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+              parser.parseBinaryRecords(version, new BinaryRecordReader(chunkChannel,
+                  TraceFileFormat.SEGMENT_HEADER_LENGTH, validLength));
+            }
+          });
+          return;
+        }
+
+        long size = channel.size();
+        long headerLength = magic == TraceFileFormat.BINARY_MAGIC
+            || magic == TraceFileFormat.COMPRESSED_MAGIC
+            ? TraceFileFormat.BINARY_HEADER_LENGTH
+            : 0;
+        List<long[]> blocks = readIndex(file, size);
+        long recordsStart = blocks.isEmpty() ? headerLength : blocks.get(0)[0];
+        List<long[]> ranges = selectRanges(blocks, recordsStart, size);
+        for (long[] range : ranges) {
+          if (withCalls(range)) {
+            parsedBytes += range[1] - range[0];
+          } else {
+            indexSkippedBytes += range[1] - range[0];
+          }
+        }
+        parsedBytes += recordsStart;
+
+        if (magic == TraceFileFormat.BINARY_MAGIC) {
+          int version = checkVersion(file, header.getInt(4));
+          // records cannot be found in the middle of a binary file, only at the start of an
+          // index block, which repeats the dictionary records it needs
+          ChunkParser fileHeader = newChunkParser(file);
+          fileHeader.parseBinaryRecords(version,
+              new BinaryRecordReader(channel, headerLength, recordsStart));
+          for (long[] range : ranges) {
+            ChunkParser parser = newChunkParser(file, withCalls(range));
+            parser.inheritFileHeader(fileHeader);
+            submitChunk(parser, chunkParser -> {
+              try (FileChannel chunkChannel = FileChannel.open(file.toPath(),
+                  StandardOpenOption.READ)) {
+                chunkParser.parseBinaryRecords(version,
+                    new BinaryRecordReader(chunkChannel, range[0], range[1]));
+              }
+            });
+          }
+        } else if (magic == TraceFileFormat.COMPRESSED_MAGIC) {
+          int version = checkVersion(file, header.getInt(4));
+          for (long[] range : ranges) {
+            parseCompressedBlocks(file, version, new BinaryRecordReader(channel, range[0],
+                range[1]), withCalls(range));
+          }
+        } else {
+          parseCsvFile(file, channel, ranges);
+        }
+      }
+    }
+
+    /**
+     * Returns {offset, end, fromEpochMillis, toEpochMillis} of the blocks in the index of the
+     * file, nothing if it has none or the index does not match the file.
+     */
+    private List<long[]> readIndex(File file, long size) {
+      File indexFile = new File(file.getPath() + TraceFileFormat.INDEX_FILE_SUFFIX);
+      if (!indexFile.isFile()) {
+        return List.of();
+      }
+      try {
+        List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(TraceFileFormat.INDEX_HEADER)) {
+          throw new IOException("unknown header");
+        }
+        List<long[]> blocks = new ArrayList<>();
+        long end = 0;
+        for (String line : lines.subList(1, lines.size())) {
+          String[] parts = line.split(";");
+          long offset = Long.parseLong(parts[0]);
+          long blockEnd = offset + Long.parseLong(parts[1]);
+          if (offset < end || blockEnd <= offset || blockEnd > size) {
+            throw new IOException("block " + line + " is outside of the file");
+          }
+          blocks.add(new long[]{offset, blockEnd, Long.parseLong(parts[2]),
+              Long.parseLong(parts[3])});
+          end = blockEnd;
+        }
+        return blocks;
+      } catch (IOException | RuntimeException ex) {
+        System.err.println("Ignoring the index " + indexFile + ": " + ex.getMessage());
+        return List.of();
+      }
+    }
+
+    /**
+     * Returns the byte ranges {start, end, withCalls} after the file header. The calls are parsed
+     * of the blocks overlapping the time window, the gaps between blocks and the records after the
+     * last block, which are not indexed. A call is written after its sub calls, so the sub calls
+     * of a call open in the window may lie in earlier blocks outside of it: the calls of an earlier
+     * block are parsed as well if its time range overlaps the one of the overlapping blocks, they
+     * complete the call hierarchy. Of the other blocks only the dropped calls are counted, which
+     * have no time. Adjacent ranges of the same kind are joined up to the chunk size.
+     */
+    private List<long[]> selectRanges(List<long[]> blocks, long recordsStart, long size) {
+      // sub calls start and end within their call, records that are not indexed are not included
+      long callsFromEpochMillis = Long.MAX_VALUE;
+      long callsToEpochMillis = Long.MIN_VALUE;
+      int lastOverlapping = -1;
+      for (int i = 0; i < blocks.size(); i++) {
+        long[] block = blocks.get(i);
+        if (block[3] >= fromEpochMillis && block[2] < toEpochMillis) {
+          callsFromEpochMillis = Math.min(callsFromEpochMillis, block[2]);
+          callsToEpochMillis = Math.max(callsToEpochMillis, block[3]);
+          lastOverlapping = i;
+        }
+      }
+
+      List<long[]> ranges = new ArrayList<>();
+      long position = recordsStart;
+      for (int i = 0; i < blocks.size(); i++) {
+        long[] block = blocks.get(i);
+        if (block[0] > position) {
+          addRange(ranges, position, block[0], true);
+        }
+        addRange(ranges, block[0], block[1], i <= lastOverlapping
+            && block[3] >= callsFromEpochMillis && block[2] <= callsToEpochMillis);
+        position = block[1];
+      }
+      if (position < size) {
+        addRange(ranges, position, size, true);
+      }
+      return ranges;
+    }
+
+    private void addRange(List<long[]> ranges, long start, long end, boolean withCalls) {
+      long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if (last != null && last[1] == start && withCalls(last) == withCalls
+          && end - last[0] <= chunkSize) {
+        last[1] = end;
+      } else {
+        ranges.add(new long[]{start, end, withCalls ? 1 : 0});
+      }
+    }
+
+    private static boolean withCalls(long[] range) {
+      return range[2] != 0;
+    }
+
+    private int checkVersion(File file, int version) throws IOException {
+      // version 1 has no call depth
+      if (version < 1 || version > TraceFileFormat.BINARY_VERSION) {
+        throw new IOException("Unsupported binary trace file version " + version + " of " + file);
+      }
+      return version;
+    }
+
+    /**
+     * Splits the ranges of the file into chunks of whole lines. The version and clock lines at the
+     * start of the file are passed to every chunk.
+     */
+    private void parseCsvFile(File file, FileChannel channel, List<long[]> ranges)
+        throws IOException {
+      ChunkParser fileHeader = newChunkParser(file);
+      try (LineNumberReader lnr = new LineNumberReader(
+          new FileReader(file, StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = lnr.readLine()) != null && line.startsWith("#")) {
+          fileHeader.parseInfoLine(line);
+        }
+      }
+
+      for (long[] range : ranges) {
+        long start = range[0];
+        while (start < range[1]) {
+          long end = range[1];
+          if (start + chunkSize < end) {
+            end = nextLineStart(channel, start + chunkSize);
+          }
+          long chunkStart = start;
+          long chunkEnd = end;
+          ChunkParser parser = newChunkParser(file, withCalls(range));
+          parser.inheritFileHeader(fileHeader);
+          submitChunk(parser, chunkParser -> {
+            try (FileChannel chunkChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+              chunkParser.parseCsvChunk(chunkChannel.map(FileChannel.MapMode.READ_ONLY,
+                  chunkStart, chunkEnd - chunkStart));
+            }
+          });
+          start = end;
+        }
+      }
+    }
+
+    /**
+     * Returns the position after the next new line at or after position, or the file size.
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(4096);
+      long size = channel.size();
+      while (position < size) {
+        buffer.clear();
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          if (buffer.get(i) == '\n') {
+            return position + i + 1;
+          }
+        }
+        position += read;
+      }
+      return size;
+    }
+
+    /**
+     * Every block repeats its clock and dictionary records, so it is decompressed and parsed as one
+     * chunk.
+     */
+    private void parseCompressedBlocks(File file, int version, BinaryRecordReader reader,
+        boolean withCalls) throws IOException {
+      try {
+        while (reader.request(1)) {
+          ByteBuffer in = reader.require(TraceFileFormat.COMPRESSED_BLOCK_HEADER_LENGTH);
+          int uncompressedLength = in.getInt();
+          byte[] compressed = new byte[in.getInt()];
+          reader.readFully(compressed);
+          compressedBytes += compressed.length;
+          uncompressedBytes += uncompressedLength;
+
+          submitChunk(newChunkParser(file, withCalls), parser -> parser.parseBinaryRecords(version,
+              new BinaryRecordReader(inflate(file, compressed, uncompressedLength))));
+        }
+      } catch (EOFException ex) {
+        System.err.println("Trace file " + file + " ends with an incomplete block.");
+      }
+    }
+
+    private ByteBuffer inflate(File file, byte[] compressed, int uncompressedLength)
+        throws IOException {
+      long cpuStartNs = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        byte[] uncompressed = new byte[uncompressedLength];
+        int length = 0;
+        while (length < uncompressedLength && !inflater.finished()) {
+          int inflated = inflater.inflate(uncompressed, length, uncompressedLength - length);
+          if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new DataFormatException("Truncated block");
+          }
+          length += inflated;
+        }
+        return ByteBuffer.wrap(uncompressed, 0, length);
+      } catch (DataFormatException ex) {
+        throw new IOException("Cannot decompress a block of " + file, ex);
+      } finally {
+        inflater.end();
+        inflateCpuNs.addAndGet(THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuStartNs);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface ChunkTask {
+
+    void parse(ChunkParser parser) throws IOException;
+  }
+
+  /**
+   * Parses one chunk of a trace file with its own repositories, so chunks can be parsed in
+   * parallel. Keeps the parsed calls until they are merged.
+   */
+  private static class ChunkParser {
+
+    private final File file;
+    private final long fromEpochMillis;
+    private final long toEpochMillis;
+    // false if only the dropped calls are counted
+    private final boolean withCalls;
+    private final ThreadRepository threadRepository = new ThreadRepository();
+    private final MethodRepository methodRepository = new MethodRepository();
+    // csv signatures and threads seen in this chunk, by their bytes
+    private final ByteSliceIds methodIds = new ByteSliceIds();
+    private final ByteSliceIds threadIds = new ByteSliceIds();
+    private final CallColumns calls = new CallColumns();
+    private final BitSet outsideTimeWindow = new BitSet();
+    private final Map<MethodData, Long> droppedCalls = new HashMap<>();
+
+    // files without a version line are version 1
+    private int csvVersion = 1;
+    private boolean hasClock;
+    private long clockEpochMillis;
+    private long clockNanoTime;
+    private long csvLines = 0;
+    // position in the csv line that is parsed
+    private int cursor;
+
+    private ChunkParser(File file, long fromEpochMillis, long toEpochMillis,
+        boolean withCalls) {
+      this.file = file;
+      this.fromEpochMillis = fromEpochMillis;
+      this.toEpochMillis = toEpochMillis;
+      this.withCalls = withCalls;
+    }
+
+    public File file() {
+      return file;
+    }
+
+    public CallColumns calls() {
+      return calls;
+    }
+
+    public boolean isInTimeWindow(int index) {
+      return !outsideTimeWindow.get(index);
+    }
+
+    public Map<MethodData, Long> droppedCalls() {
+      return droppedCalls;
+    }
+
+    public boolean hasClock() {
+      return hasClock;
+    }
+
+    public long clockEpochMillis() {
+      return clockEpochMillis;
+    }
+
+    public long clockNanoTime() {
+      return clockNanoTime;
+    }
+
+    public long csvLines() {
+      return csvLines;
+    }
+
+    /**
+     * Takes the format version and the clock of the start of a csv file.
+     */
+    public void inheritFileHeader(ChunkParser fileHeader) {
+      csvVersion = fileHeader.csvVersion;
+      hasClock = fileHeader.hasClock;
+      clockEpochMillis = fileHeader.clockEpochMillis;
+      clockNanoTime = fileHeader.clockNanoTime;
+    }
+
+    private boolean hasTimeWindow() {
+      return fromEpochMillis != Long.MIN_VALUE || toEpochMillis != Long.MAX_VALUE;
+    }
+
+    /**
+     * @param methodId id of the method in {@link #calls()}
+     * @param threadId id of the thread in {@link #calls()}
+     */
+    private void addDatapoint(long startNs, long durationNs, int methodId, int threadId,
+        int weight, int untracedCount, long untracedNs, int depth) {
+      if (!withCalls) {
+        return;
+      }
+      if (hasTimeWindow() && hasClock) {
+        long startEpochMillis = clockEpochMillis
+            + Math.floorDiv(startNs - clockNanoTime, 1_000_000L);
+        long endEpochMillis = clockEpochMillis
+            + Math.floorDiv(startNs + durationNs - clockNanoTime, 1_000_000L);
+        if (endEpochMillis < fromEpochMillis || startEpochMillis >= toEpochMillis) {
+          outsideTimeWindow.set(calls.size());
+        }
+      }
+      calls.add(startNs, durationNs, methodId, threadId, weight, untracedCount, untracedNs,
+          depth);
+    }
+
+    private void setClock(long epochMillis, long nanoTime) {
+      hasClock = true;
+      clockEpochMillis = epochMillis;
+      clockNanoTime = nanoTime;
+    }
+
+    /**
+     * Parses the csv lines directly from their bytes. Numbers are parsed in place, signatures and
+     * thread names are only decoded the first time they occur in the chunk. A malformed line fails
+     * with the file and the line in the message.
+     */
+    public void parseCsvChunk(ByteBuffer chunk) {
+      int limit = chunk.limit();
+      int lineStart = chunk.position();
+      while (lineStart < limit) {
+        int lineEnd = indexOf(chunk, (byte) '\n', lineStart, limit);
+        if (lineEnd < 0) {
+          lineEnd = limit;
+        }
+        int contentEnd = lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r'
+            ? lineEnd - 1
+            : lineEnd;
+        if (contentEnd > lineStart) {
+          if (chunk.get(lineStart) == '#') {
+            csvLines++;
+            parseInfoLine(decode(chunk, lineStart, contentEnd));
+          } else if (withCalls) {
+            csvLines++;
+            try {
+              parseCsvLine(chunk, lineStart, contentEnd);
+            } catch (IllegalArgumentException e) {
+              throw invalidLine(decode(chunk, lineStart, contentEnd), e);
+            }
+          }
+        }
+        lineStart = lineEnd + 1;
+      }
+    }
+
+    /**
+     * Parses the line [from, to): an optional {@code *weight,untracedCount,untracedNs,depth;}
+     * prefix, then {@code startNs;durationNs;signature;threadHashCode;threadName}.
+     */
+    private void parseCsvLine(ByteBuffer line, int from, int to) {
+      int weight = 1;
+      int untracedCount = 0;
+      long untracedNs = 0;
+      // since version 2 lines without prefix are root calls
+      int depth = csvVersion >= 2 ? 0 : -1;
+      cursor = from;
+      if (line.get(cursor) == TraceFileFormat.CSV_SAMPLED_PREFIX) {
+        cursor++;
+        // version 1 prefixes have 1 or 3 numbers
+        weight = parseInt(line, from, to);
+        if (skipPrefixSeparator(line, from, to)) {
+          untracedCount = parseInt(line, from, to);
+          skipPrefixSeparator(line, from, to);
+          untracedNs = parseLong(line, from, to);
+          if (skipPrefixSeparator(line, from, to)) {
+            depth = parseInt(line, from, to);
+            skipPrefixSeparator(line, from, to);
+          }
+        }
+      }
+      long startNs = parseLong(line, from, to);
+      skip(line, from, to);
+      long durationNs = parseLong(line, from, to);
+      skip(line, from, to);
+      int signatureStart = cursor;
+      int signatureEnd = indexOf(line, (byte) ';', signatureStart, to);
+      if (signatureEnd < 0) {
+        throw new IllegalArgumentException("thread missing");
+      }
+      cursor = signatureEnd + 1;
+      int threadHashCode = parseInt(line, from, to);
+      skip(line, from, to);
+
+      int threadId = threadId(line, cursor, to, threadHashCode);
+      int methodId = methodId(line, signatureStart, signatureEnd);
+      addDatapoint(startNs, durationNs, methodId, threadId, weight, untracedCount, untracedNs,
+          depth);
+    }
+
+    private int methodId(ByteBuffer line, int from, int to) {
+      int methodId = methodIds.find(line, from, to, 0);
+      if (methodId < 0) {
+        String signature = decode(line, from, to);
+        if (signature.isBlank()) {
+          throw new IllegalArgumentException("signature must not be blank");
+        }
+        methodId = calls.registerMethod(methodRepository.find(signature));
+        methodIds.put(line, from, to, 0, methodId);
+      }
+      return methodId;
+    }
+
+    private int threadId(ByteBuffer line, int from, int to, int threadHashCode) {
+      int threadId = threadIds.find(line, from, to, threadHashCode);
+      if (threadId < 0) {
+        String threadName = decode(line, from, to);
+        if (threadName.isBlank()) {
+          throw new IllegalArgumentException("threadName must not be blank");
+        }
+        threadId = calls.registerThread(threadRepository.find(threadHashCode, threadName));
+        threadIds.put(line, from, to, threadHashCode, threadId);
+      }
+      return threadId;
+    }
+
+    /**
+     * Parses the digits at the cursor and leaves the cursor after them.
+     */
+    private long parseLong(ByteBuffer line, int from, int to) {
+      int numberStart = cursor;
+      boolean negative = cursor < to && line.get(cursor) == '-';
+      if (negative) {
+        cursor++;
+      }
+      int digitsStart = cursor;
+      long value = 0;
+      while (cursor < to) {
+        int digit = line.get(cursor) - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        value = value * 10 + digit;
+        cursor++;
+      }
+      if (cursor == digitsStart) {
+        throw new IllegalArgumentException("number expected at " + (cursor - from));
+      }
+      if (cursor - digitsStart > 18) {
+        // may overflow, rare enough to take the slow path
+        return Long.parseLong(decode(line, numberStart, cursor));
+      }
+      return negative ? -value : value;
+    }
+
+    private int parseInt(ByteBuffer line, int from, int to) {
+      int numberStart = cursor;
+      long value = parseLong(line, from, to);
+      if (value != (int) value) {
+        throw new NumberFormatException("For input string: \""
+            + decode(line, numberStart, cursor) + "\"");
+      }
+      return (int) value;
+    }
+
+    /**
+     * Skips the field separator at the cursor.
+     */
+    private void skip(ByteBuffer line, int from, int to) {
+      if (cursor >= to || line.get(cursor) != ';') {
+        throw new IllegalArgumentException("';' expected at " + (cursor - from));
+      }
+      cursor++;
+    }
+
+    /**
+     * Skips the separator after a number of the prefix, returns {@code true} if another number
+     * follows.
+     */
+    private boolean skipPrefixSeparator(ByteBuffer line, int from, int to) {
+      if (cursor < to && line.get(cursor) == TraceFileFormat.CSV_PREFIX_SEPARATOR) {
+        cursor++;
+        return true;
+      }
+      skip(line, from, to);
+      return false;
+    }
+
+    private IllegalArgumentException invalidLine(String line, RuntimeException cause) {
+      return new IllegalArgumentException("Invalid trace line in " + file + " ("
+          + cause.getMessage() + "): " + line, cause);
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int from, int to) {
+      for (int i = from; i < to; i++) {
+        if (buffer.get(i) == value) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String decode(ByteBuffer buffer, int from, int to) {
+      byte[] bytes = new byte[to - from];
+      buffer.get(from, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void parseBinaryRecords(int version, BinaryRecordReader reader) throws IOException {
+      // the events of version 1 end without the short depth
+      int depthLength = version >= 2 ? 2 : 0;
+      // ids are only valid within one file, every segment repeats its dictionary, they are mapped
+      // to the ids in the columns
+      Map<Integer, Integer> methods = new HashMap<>();
+      Map<Integer, Integer> threads = new HashMap<>();
+      try {
+        while (reader.request(1)) {
+          byte tag = reader.buffer().get();
+          switch (tag) {
+            case TraceFileFormat.TAG_METHOD -> {
+              ByteBuffer in = reader.require(4);
+              int methodId = in.getInt();
+              methods.put(methodId,
+                  calls.registerMethod(methodRepository.find(reader.readString())));
+            }
+            case TraceFileFormat.TAG_THREAD -> {
+              ByteBuffer in = reader.require(8);
+              int threadId = in.getInt();
+              int threadHashCode = in.getInt();
+              threads.put(threadId,
+                  calls.registerThread(threadRepository.find(threadHashCode, reader.readString())));
+            }
+            case TraceFileFormat.TAG_EVENT -> {
+              ByteBuffer in = reader.require(24 + depthLength);
+              long startNs = in.getLong();
+              long durationNs = in.getLong();
+              int methodId = lookUp(methods, in.getInt(), "method");
+              int threadId = lookUp(threads, in.getInt(), "thread");
+              addDatapoint(startNs, durationNs, methodId, threadId, 1, 0, 0,
+                  readDepth(in, version));
+            }
+            case TraceFileFormat.TAG_SAMPLED_EVENT -> {
+              ByteBuffer in = reader.require(28 + depthLength);
+              long startNs = in.getLong();
+              long durationNs = in.getLong();
+              int methodId = lookUp(methods, in.getInt(), "method");
+              int threadId = lookUp(threads, in.getInt(), "thread");
+              int weight = in.getInt();
+              addDatapoint(startNs, durationNs, methodId, threadId, weight, 0, 0,
+                  readDepth(in, version));
+            }
+            case TraceFileFormat.TAG_EVENT_WITH_UNTRACED -> {
+              ByteBuffer in = reader.require(40 + depthLength);
+              long startNs = in.getLong();
+              long durationNs = in.getLong();
+              int methodId = lookUp(methods, in.getInt(), "method");
+              int threadId = lookUp(threads, in.getInt(), "thread");
+              int weight = in.getInt();
+              int untracedCount = in.getInt();
+              long untracedNs = in.getLong();
+              addDatapoint(startNs, durationNs, methodId, threadId, weight, untracedCount,
+                  untracedNs, readDepth(in, version));
+            }
+            case TraceFileFormat.TAG_DROPPED -> {
+              ByteBuffer in = reader.require(12);
+              MethodData method = calls.methodById(lookUp(methods, in.getInt(), "method"));
+              addDroppedCalls(method, in.getLong());
+            }
+            case TraceFileFormat.TAG_CLOCK -> {
+              ByteBuffer in = reader.require(16);
+              setClock(in.getLong(), in.getLong());
+            }
+            default -> throw new IOException("Unknown record tag " + tag + " in " + file);
+          }
+        }
+      } catch (EOFException ex) {
+        System.err.println("Trace file " + file + " ends with an incomplete record.");
+      }
+    }
+
+    private int lookUp(Map<Integer, Integer> ids, int id, String kind) throws IOException {
+      Integer columnId = ids.get(id);
+      if (columnId == null) {
+        throw new IOException("Unknown " + kind + " id " + id + " in " + file);
+      }
+      return columnId;
+    }
+
+    /**
+     * Returns {@code -1} if the version has no call depth.
+     */
+    private static int readDepth(ByteBuffer in, int version) {
+      return version >= 2 ? in.getShort() : -1;
+    }
+
+    public void parseInfoLine(String line) {
+      String[] parts = line.split(";", 3);
+      try {
+        if (parts[0].equals(TraceFileFormat.CSV_DROPPED)) {
+          long count = Long.parseLong(parts[1]);
+          addDroppedCalls(methodRepository.find(parts[2]), count);
+        } else if (parts[0].equals(TraceFileFormat.CSV_CLOCK)) {
+          setClock(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } else if (parts[0].equals(TraceFileFormat.CSV_VERSION)) {
+          csvVersion = Integer.parseInt(parts[1]);
+        }
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw invalidLine(line, e);
+      }
+    }
+
+    private void addDroppedCalls(MethodData method, long count) {
+      droppedCalls.merge(method, count, Long::sum);
+    }
+  }
+
+  /**
+   * Ids of byte slices with an int key, e.g. of the signatures or the thread names and hash codes
+   * of a csv chunk, so known values are found without decoding them. Open addressing with linear
+   * probing.
+   */
+  private static class ByteSliceIds {
+
+    private byte[][] slices = new byte[64][];
+    private int[] keys = new int[64];
+    private int[] hashes = new int[64];
+    private int[] ids = new int[64];
+    private int size = 0;
+
+    /**
+     * Returns {@code -1} if the slice [from, to) with the key has no id yet.
+     */
+    public int find(ByteBuffer source, int from, int to, int key) {
+      int hash = hash(source, from, to, key);
+      int mask = slices.length - 1;
+      for (int slot = hash & mask; slices[slot] != null; slot = (slot + 1) & mask) {
+        if (hashes[slot] == hash && keys[slot] == key && equals(slices[slot], source, from, to)) {
+          return ids[slot];
+        }
+      }
+      return -1;
+    }
+
+    public void put(ByteBuffer source, int from, int to, int key, int id) {
+      if (2 * (size + 1) > slices.length) {
+        grow();
+      }
+      byte[] slice = new byte[to - from];
+      source.get(from, slice);
+      insert(slice, key, hash(source, from, to, key), id);
+      size++;
+    }
+
+    private void insert(byte[] slice, int key, int hash, int id) {
+      int mask = slices.length - 1;
+      int slot = hash & mask;
+      while (slices[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      slices[slot] = slice;
+      keys[slot] = key;
+      hashes[slot] = hash;
+      ids[slot] = id;
+    }
+
+    private void grow() {
+      byte[][] oldSlices = slices;
+      int[] oldKeys = keys;
+      int[] oldHashes = hashes;
+      int[] oldIds = ids;
+      slices = new byte[oldSlices.length * 2][];
+      keys = new int[slices.length];
+      hashes = new int[slices.length];
+      ids = new int[slices.length];
+      for (int slot = 0; slot < oldSlices.length; slot++) {
+        if (oldSlices[slot] != null) {
+          insert(oldSlices[slot], oldKeys[slot], oldHashes[slot], oldIds[slot]);
+        }
+      }
+    }
+
+    private static int hash(ByteBuffer source, int from, int to, int key) {
+      int hash = key;
+      for (int i = from; i < to; i++) {
+        hash = 31 * hash + source.get(i);
+      }
+      return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] slice, ByteBuffer source, int from, int to) {
+      if (slice.length != to - from) {
+        return false;
+      }
+      for (int i = 0; i < slice.length; i++) {
+        if (slice[i] != source.get(from + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Reads the byte range [start, end) of a binary trace file through a reusable buffer.
+   */
+  private static class BinaryRecordReader {
+
+    private final FileChannel channel;
+    private final long end;
+    private final ByteBuffer buffer;
+    private long position;
+
+    private BinaryRecordReader(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+      this.buffer = ByteBuffer.allocate(1 << 20);
+      buffer.flip();
+    }
+
+    /**
+     * Reads the records of a decompressed block.
+     */
+    private BinaryRecordReader(ByteBuffer block) {
+      this.channel = null;
+      this.position = 0;
+      this.end = 0;
+      this.buffer = block;
+    }
+
+    public ByteBuffer buffer() {
+      return buffer;
+    }
+
+    /**
+     * Makes sure the next bytes are buffered, returns false if the range ends before.
+     */
+    public boolean request(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) {
+        return true;
+      }
+      if (position >= end) {
+        return false;
+      }
+      if (bytes > buffer.capacity()) {
+        throw new IOException("Record of " + bytes + " bytes exceeds the read buffer");
+      }
+
+      buffer.compact();
+      while (buffer.position() < bytes && position < end) {
+        buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        position += read;
+      }
+      buffer.flip();
+      return buffer.remaining() >= bytes;
+    }
+
+    public ByteBuffer require(int bytes) throws IOException {
+      if (!request(bytes)) {
+        throw new EOFException();
+      }
+      return buffer;
+    }
+
+    public void readFully(byte[] target) throws IOException {
+      int offset = 0;
+      while (offset < target.length) {
+        int length = Math.min(target.length - offset, buffer.capacity());
+        require(length).get(target, offset, length);
+        offset += length;
+      }
+    }
+
+    public String readString() throws IOException {
+      int length = require(4).getInt();
+      ByteBuffer in = require(length);
+      String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+          StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+      return value;
+    }
+  }
+
+  private static class ThreadRepository {
+
+    private final Map<String, List<ThreadData>> data = new HashMap<>();
+
+    public ThreadData find(int threadHashCode, String threadName) {
+      List<ThreadData> list = data.get(threadName);
+      if (list == null) {
+        ArrayList<ThreadData> newList = new ArrayList<>();
+        newList.add(new ThreadData(threadHashCode, threadName));
+        data.put(threadName, newList);
+        return newList.getFirst();
       }
 
       for (ThreadData threadData : list) {
@@ -882,167 +3313,896 @@ public class TraceFileAnalyzer {
   }
 
 
-  private record Datapoint(
-      long startNs,
-      long durationNs,
-      MethodData method,
-      ThreadData thread
-  ) {
+  /**
+   * Calls stored column by column in blocks of primitive arrays, methods and threads are
+   * referenced by their id in the dictionaries. Growing only adds blocks, nothing is copied.
+   * Weights, untraced children and depths are only stored once a call needs them, most traces have
+   * no sampled calls.
+   *
+   * <p>Durations are stored as int, which covers about 2 seconds. The few longer calls keep their
+   * duration in a sorted side column, independent of the call rate of the trace. Method and thread
+   * ids are chars until a dictionary outgrows them. So a call takes 16 bytes, 18 with depths.
+   */
+  private static class CallColumns {
+
+    private static final int BLOCK_BITS = 14;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    // marks a duration kept in the long durations
+    private static final int LONG_DURATION = Integer.MIN_VALUE;
+
+    private final List<MethodData> methods = new ArrayList<>();
+    private final Map<MethodData, Integer> methodIdLookUp = new HashMap<>();
+    private final List<ThreadData> threads = new ArrayList<>();
+    private final Map<ThreadData, Integer> threadIdLookUp = new HashMap<>();
+
+    private long[][] startNs = new long[16][];
+    private int[][] durationNs = new int[16][];
+    // indexes in ascending order and durations of the calls that do not fit into an int
+    private int[] longDurationIndexes = new int[16];
+    private long[] longDurationNs = new long[16];
+    private int longDurations = 0;
+    // null once the ids do not fit into a char, then the wide ids are used
+    private char[][] methodIds = new char[16][];
+    private char[][] threadIds = new char[16][];
+    private int[][] wideMethodIds;
+    private int[][] wideThreadIds;
+    // null until the first call needs them
+    private int[][] weights;
+    private int[][] untracedCounts;
+    private long[][] untracedNs;
+    private short[][] depths;
+    // depth of all calls as long as depths is null, -1 if the files have no depths
+    private int commonDepth = Integer.MIN_VALUE;
+    private int blocks = 0;
+    private int size = 0;
+
+    // ids of the source columns in these columns, see add(CallColumns, int)
+    private CallColumns lastSource;
+    private int[] sourceMethodIds = new int[0];
+    private int[] sourceThreadIds = new int[0];
+
+    public int size() {
+      return size;
+    }
 
-    private Datapoint {
-      Objects.requireNonNull(method, "method");
-      Objects.requireNonNull(thread, "thread");
+    public int methodCount() {
+      return methods.size();
     }
 
-    public long endNs() {
-      return startNs + durationNs;
+    public MethodData methodById(int methodId) {
+      return methods.get(methodId);
     }
 
-    public boolean calledAfter(long endNs) {
-      return startNs >= endNs;
+    public int registerMethod(MethodData method) {
+      return methodIdLookUp.computeIfAbsent(method, k -> {
+        methods.add(k);
+        return methods.size() - 1;
+      });
     }
-  }
 
-  private record RawDatapoint(
-      long startNs,
-      long durationNs,
-      String signature,
-      int threadHashCode,
-      String threadName
-  ) {
+    public int registerThread(ThreadData thread) {
+      return threadIdLookUp.computeIfAbsent(thread, k -> {
+        threads.add(k);
+        return threads.size() - 1;
+      });
+    }
+
+    public long startNs(int index) {
+      return startNs[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    public long durationNs(int index) {
+      int duration = durationNs[index >>> BLOCK_BITS][index & BLOCK_MASK];
+      if (duration != LONG_DURATION) {
+        return duration;
+      }
+      return longDurationNs[Arrays.binarySearch(longDurationIndexes, 0, longDurations, index)];
+    }
+
+    public long endNs(int index) {
+      return startNs(index) + durationNs(index);
+    }
+
+    public int methodId(int index) {
+      return methodIds != null
+          ? methodIds[index >>> BLOCK_BITS][index & BLOCK_MASK]
+          : wideMethodIds[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    public int threadId(int index) {
+      return threadIds != null
+          ? threadIds[index >>> BLOCK_BITS][index & BLOCK_MASK]
+          : wideThreadIds[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    public MethodData method(int index) {
+      return methods.get(methodId(index));
+    }
+
+    public ThreadData thread(int index) {
+      return threads.get(threadId(index));
+    }
+
+    /**
+     * Number of calls the call stands for, more than 1 if it was sampled.
+     */
+    public int weight(int index) {
+      return weights == null ? 1 : weights[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    /**
+     * Number of direct children that were not traced.
+     */
+    public int untracedCount(int index) {
+      return untracedCounts == null
+          ? 0
+          : untracedCounts[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    /**
+     * Total duration of the direct children that were not traced.
+     */
+    public long untracedNs(int index) {
+      return untracedNs == null ? 0 : untracedNs[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    /**
+     * Number of enclosing calls, {@code -1} if the file has no depths.
+     */
+    public int depth(int index) {
+      return depths == null ? commonDepth : depths[index >>> BLOCK_BITS][index & BLOCK_MASK];
+    }
+
+    public void add(long callStartNs, long callDurationNs, int methodId, int threadId,
+        int weight, int untracedCount, long callUntracedNs, int depth) {
+      if (size == blocks * BLOCK_SIZE) {
+        addBlock();
+      }
+      int block = size >>> BLOCK_BITS;
+      int offset = size & BLOCK_MASK;
+      startNs[block][offset] = callStartNs;
+      if (callDurationNs != (int) callDurationNs || callDurationNs == LONG_DURATION) {
+        durationNs[block][offset] = LONG_DURATION;
+        if (longDurations == longDurationIndexes.length) {
+          longDurationIndexes = Arrays.copyOf(longDurationIndexes, longDurations * 2);
+          longDurationNs = Arrays.copyOf(longDurationNs, longDurations * 2);
+        }
+        // calls are only appended, so the indexes stay sorted
+        longDurationIndexes[longDurations] = size;
+        longDurationNs[longDurations] = callDurationNs;
+        longDurations++;
+      } else {
+        durationNs[block][offset] = (int) callDurationNs;
+      }
+      if (methodIds != null && methodId > Character.MAX_VALUE) {
+        wideMethodIds = widen(methodIds);
+        methodIds = null;
+      }
+      if (methodIds != null) {
+        methodIds[block][offset] = (char) methodId;
+      } else {
+        wideMethodIds[block][offset] = methodId;
+      }
+      if (threadIds != null && threadId > Character.MAX_VALUE) {
+        wideThreadIds = widen(threadIds);
+        threadIds = null;
+      }
+      if (threadIds != null) {
+        threadIds[block][offset] = (char) threadId;
+      } else {
+        wideThreadIds[block][offset] = threadId;
+      }
+      if (weights == null && weight != 1) {
+        weights = new int[durationNs.length][];
+        for (int i = 0; i < blocks; i++) {
+          weights[i] = new int[BLOCK_SIZE];
+          Arrays.fill(weights[i], 1);
+        }
+      }
+      if (weights != null) {
+        weights[block][offset] = weight;
+      }
+      if (untracedCounts == null && untracedCount != 0) {
+        untracedCounts = new int[durationNs.length][];
+        untracedNs = new long[durationNs.length][];
+        for (int i = 0; i < blocks; i++) {
+          untracedCounts[i] = new int[BLOCK_SIZE];
+          untracedNs[i] = new long[BLOCK_SIZE];
+        }
+      }
+      if (untracedCounts != null) {
+        untracedCounts[block][offset] = untracedCount;
+        untracedNs[block][offset] = callUntracedNs;
+      }
+      if (depths == null && size == 0) {
+        commonDepth = depth;
+      }
+      if (depths == null && depth != commonDepth) {
+        depths = new short[durationNs.length][];
+        for (int i = 0; i < blocks; i++) {
+          depths[i] = new short[BLOCK_SIZE];
+          Arrays.fill(depths[i], (short) commonDepth);
+        }
+      }
+      if (depths != null) {
+        depths[block][offset] = (short) Math.min(depth, Short.MAX_VALUE);
+      }
+      size++;
+    }
+
+    /**
+     * Copies a call of other columns, e.g. of a parsed chunk.
+     */
+    public void add(CallColumns source, int index) {
+      if (source != lastSource) {
+        // the dictionaries of a source do not change once its calls are copied
+        lastSource = source;
+        sourceMethodIds = new int[source.methods.size()];
+        for (int i = 0; i < sourceMethodIds.length; i++) {
+          sourceMethodIds[i] = registerMethod(source.methods.get(i));
+        }
+        sourceThreadIds = new int[source.threads.size()];
+        for (int i = 0; i < sourceThreadIds.length; i++) {
+          sourceThreadIds[i] = registerThread(source.threads.get(i));
+        }
+      }
+      add(source.startNs(index), source.durationNs(index),
+          sourceMethodIds[source.methodId(index)], sourceThreadIds[source.threadId(index)],
+          source.weight(index), source.untracedCount(index), source.untracedNs(index),
+          source.depth(index));
+    }
+
+    private static char[][] copyOrNull(char[][] ids, int capacity) {
+      return ids != null ? Arrays.copyOf(ids, capacity) : null;
+    }
+
+    private static int[][] copyOrNull(int[][] ids, int capacity) {
+      return ids != null ? Arrays.copyOf(ids, capacity) : null;
+    }
+
+    private int[][] widen(char[][] ids) {
+      int[][] wideIds = new int[ids.length][];
+      for (int i = 0; i < blocks; i++) {
+        wideIds[i] = new int[BLOCK_SIZE];
+        for (int j = 0; j < BLOCK_SIZE; j++) {
+          wideIds[i][j] = ids[i][j];
+        }
+      }
+      return wideIds;
+    }
+
+    private void addBlock() {
+      if (blocks == durationNs.length) {
+        int capacity = blocks * 2;
+        startNs = Arrays.copyOf(startNs, capacity);
+        durationNs = Arrays.copyOf(durationNs, capacity);
+        methodIds = copyOrNull(methodIds, capacity);
+        threadIds = copyOrNull(threadIds, capacity);
+        wideMethodIds = copyOrNull(wideMethodIds, capacity);
+        wideThreadIds = copyOrNull(wideThreadIds, capacity);
+        if (weights != null) {
+          weights = Arrays.copyOf(weights, capacity);
+        }
+        if (untracedCounts != null) {
+          untracedCounts = Arrays.copyOf(untracedCounts, capacity);
+          untracedNs = Arrays.copyOf(untracedNs, capacity);
+        }
+        if (depths != null) {
+          depths = Arrays.copyOf(depths, capacity);
+        }
+      }
+      startNs[blocks] = new long[BLOCK_SIZE];
+      durationNs[blocks] = new int[BLOCK_SIZE];
+      if (methodIds != null) {
+        methodIds[blocks] = new char[BLOCK_SIZE];
+      } else {
+        wideMethodIds[blocks] = new int[BLOCK_SIZE];
+      }
+      if (threadIds != null) {
+        threadIds[blocks] = new char[BLOCK_SIZE];
+      } else {
+        wideThreadIds[blocks] = new int[BLOCK_SIZE];
+      }
+      if (weights != null) {
+        weights[blocks] = new int[BLOCK_SIZE];
+      }
+      if (untracedCounts != null) {
+        untracedCounts[blocks] = new int[BLOCK_SIZE];
+        untracedNs[blocks] = new long[BLOCK_SIZE];
+      }
+      if (depths != null) {
+        depths[blocks] = new short[BLOCK_SIZE];
+      }
+      blocks++;
+    }
+
+    /**
+     * Fills {@code order} with the indexes of the calls, grouped by thread and in file order within
+     * a thread. Returns where the group of every thread starts, followed by the end of the last.
+     */
+    public int[] groupByThread(int[] order) {
+      // counting sort by thread keeps the file order within a thread
+      int[] threadStarts = new int[threads.size() + 1];
+      for (int i = 0; i < size; i++) {
+        threadStarts[threadId(i) + 1]++;
+      }
+      for (int thread = 0; thread < threads.size(); thread++) {
+        threadStarts[thread + 1] += threadStarts[thread];
+      }
+      int[] next = Arrays.copyOf(threadStarts, threads.size());
+      for (int i = 0; i < size; i++) {
+        order[next[threadId(i)]++] = i;
+      }
+      return threadStarts;
+    }
 
-    private RawDatapoint {
-      Objects.requireNonNull(signature, "signature");
-      Objects.requireNonNull(threadName, "threadName");
-      if (signature.isBlank()) {
-        throw new IllegalArgumentException("signature must not be blank");
+    /**
+     * Orders by start time, enclosing calls first: of calls with the same start the longer one,
+     * of equally long ones the one later in the file, because a call is written after its sub
+     * calls.
+     */
+    private boolean startsBefore(int index, int otherIndex) {
+      long start = startNs(index);
+      long otherStart = startNs(otherIndex);
+      if (start != otherStart) {
+        return start < otherStart;
       }
-      if (threadName.isBlank()) {
-        throw new IllegalArgumentException("threadName must not be blank");
+      long duration = durationNs(index);
+      long otherDuration = durationNs(otherIndex);
+      if (duration != otherDuration) {
+        return duration > otherDuration;
       }
+      return index > otherIndex;
+    }
+
+    /**
+     * Merge sort of the indexes in [from, to), see {@link #startsBefore(int, int)}. Only touches
+     * that range of the buffer, so disjoint ranges can be sorted concurrently.
+     */
+    public void sortByStart(int[] indexes, int from, int to, int[] buffer) {
+      if (to - from <= 16) {
+        for (int i = from + 1; i < to; i++) {
+          int index = indexes[i];
+          int j = i - 1;
+          while (j >= from && startsBefore(index, indexes[j])) {
+            indexes[j + 1] = indexes[j];
+            j--;
+          }
+          indexes[j + 1] = index;
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      sortByStart(indexes, from, middle, buffer);
+      sortByStart(indexes, middle, to, buffer);
+      if (startsBefore(indexes[middle - 1], indexes[middle])) {
+        // already in order, e.g. calls without sub calls
+        return;
+      }
+      System.arraycopy(indexes, from, buffer, from, to - from);
+      int left = from;
+      int right = middle;
+      int target = from;
+      while (left < middle && right < to) {
+        indexes[target++] = startsBefore(buffer[right], buffer[left])
+            ? buffer[right++]
+            : buffer[left++];
+      }
+      System.arraycopy(buffer, left, indexes, target, middle - left);
+      target += middle - left;
+      System.arraycopy(buffer, right, indexes, target, to - right);
     }
   }
 
-  private static class FileFactory<T> {
+  /**
+   * Nesting of the calls of every thread. The calls of a thread are ordered by start, see
+   * {@link CallColumns#startsBefore(int, int)}, so every call is directly followed by the calls it
+   * encloses, its sub tree. The sub trees are found in one pass per thread with a stack of the open
+   * calls. A call encloses a later one if that one ends within it and does not start at its end,
+   * unless both start at the same time.
+   *
+   * <p>Threads are independent: their trees are built and collected concurrently, and the results
+   * of the threads are merged pairwise.
+   */
+  private static class CallTree {
+
+    private final CallColumns calls;
+    // call indexes, the calls of thread t are at the positions threadStarts[t] to
+    // threadStarts[t + 1] - 1
+    private final int[] order;
+    private final int[] threadStarts;
+    // per position: end of the sub tree of the call and summed duration of its direct sub calls
+    private final int[] subTreeEnds;
+    private final long[] subCallsNs;
+    private final int[] sortBuffer;
+
+    private CallTree(CallColumns calls) {
+      this.calls = calls;
+      this.order = new int[calls.size()];
+      this.threadStarts = calls.groupByThread(order);
+      this.subTreeEnds = new int[calls.size()];
+      this.subCallsNs = new long[calls.size()];
+      this.sortBuffer = new int[calls.size()];
+    }
+
+    /**
+     * Builds the tree of every thread and collects it on {@code threads} threads.
+     *
+     * @param collector collects the positions [from, to) of one thread
+     * @param merge     merges the results of two groups of threads
+     */
+    static <T> T collect(CallColumns calls, int threads, ThreadCollector<T> collector,
+        BinaryOperator<T> merge) {
+      CallTree callTree = new CallTree(calls);
+      int threadCount = callTree.threadStarts.length - 1;
+      if (threadCount == 0) {
+        return collector.collect(callTree, 0, 0);
+      }
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        return pool.invoke(callTree.new CollectTask<>(0, threadCount, collector, merge));
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    private void link(int from, int to) {
+      calls.sortByStart(order, from, to, sortBuffer);
+
+      int[] stack = new int[64];
+      int depth = 0;
+      for (int position = from; position < to; position++) {
+        int call = order[position];
+        while (depth > 0 && !encloses(order[stack[depth - 1]], call)) {
+          subTreeEnds[stack[--depth]] = position;
+        }
+        if (depth > 0) {
+          subCallsNs[stack[depth - 1]] += calls.durationNs(call);
+        }
+        if (depth == stack.length) {
+          stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = position;
+      }
+      while (depth > 0) {
+        subTreeEnds[stack[--depth]] = to;
+      }
+    }
+
+    private boolean encloses(int parent, int call) {
+      long parentEndNs = calls.endNs(parent);
+      return calls.endNs(call) <= parentEndNs
+          && (calls.startNs(call) < parentEndNs || calls.startNs(call) == calls.startNs(parent));
+    }
 
-    private final List<OutputLine<T>> lines = new ArrayList<>();
-    private final Comparator<T> comparator;
+    public int call(int position) {
+      return order[position];
+    }
 
-    private FileFactory(Comparator<T> comparator) {
-      this.comparator = comparator;
+    /**
+     * Position after the last call enclosed by the call at the position. The direct sub calls are
+     * at {@code position + 1}, {@code subTreeEnd(position + 1)} and so on, in start order.
+     */
+    public int subTreeEnd(int position) {
+      return subTreeEnds[position];
     }
 
-    public OutputLine<T> newLine(T hiddenField) {
-      var line = new OutputLine<>(hiddenField);
-      lines.add(line);
-      return line;
+    /**
+     * Duration without the traced and the untraced sub calls.
+     */
+    public long selfNs(int position) {
+      int call = order[position];
+      return calls.durationNs(call) - subCallsNs[position] - calls.untracedNs(call);
     }
 
-    public void writeToFile(String fileName) {
-      File file = new File(fileName);
-      try (FileWriter fw = new FileWriter(file, StandardCharsets.UTF_8)) {
-        lines.sort(Comparator.comparing(OutputLine::hiddenField, comparator));
+    @FunctionalInterface
+    private interface ThreadCollector<T> {
 
-        for (var line : lines) {
-          fw.append(line.currentContent)
-              .append("\n");
+      T collect(CallTree callTree, int from, int to);
+    }
+
+    /**
+     * Builds and collects the threads [fromThread, toThread), splits them in halves until only
+     * one is left.
+     */
+    // only Serializable because RecursiveTask is, it is never serialized
+    @SuppressWarnings("serial")
+    private class CollectTask<T> extends RecursiveTask<T> {
+
+      private final int fromThread;
+      private final int toThread;
+      private final ThreadCollector<T> collector;
+      private final BinaryOperator<T> merge;
+
+      private CollectTask(int fromThread, int toThread, ThreadCollector<T> collector,
+          BinaryOperator<T> merge) {
+        this.fromThread = fromThread;
+        this.toThread = toThread;
+        this.collector = collector;
+        this.merge = merge;
+      }
+
+      @Override
+      protected T compute() {
+        if (toThread - fromThread == 1) {
+          int from = threadStarts[fromThread];
+          int to = threadStarts[toThread];
+          link(from, to);
+          return collector.collect(CallTree.this, from, to);
         }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+        int middle = (fromThread + toThread) >>> 1;
+        CollectTask<T> left = new CollectTask<>(fromThread, middle, collector, merge);
+        left.fork();
+        T right = new CollectTask<>(middle, toThread, collector, merge).compute();
+        return merge.apply(left.join(), right);
       }
+    }
+  }
 
-      System.out.println("File " + file.getAbsolutePath() + " written.");
+
+  /**
+   * Call paths interned as a tree: a path is its parent path plus one method and the same path
+   * always gets the same id. Path 0 is the empty path, every other path is added after its parent.
+   */
+  private static class CallPaths {
+
+    static final int ROOT = 0;
+    // method id of the children folded into their parent while tracing, e.g. because they were
+    // too short
+    static final int UNTRACED_CALLS = -1;
+
+    // key: parent path in the upper, method id in the lower 32 bits
+    private final Map<Long, Integer> ids = new HashMap<>();
+    private int[] parents = new int[64];
+    private int[] methodIds = new int[64];
+    private int[] depths = new int[64];
+    private int size = 1;
+
+    public int size() {
+      return size;
     }
 
-    protected static class OutputLine<T> {
+    public int parent(int path) {
+      return parents[path];
+    }
 
-      private final T hiddenField;
-      private final StringBuilder currentContent = new StringBuilder();
+    public int methodId(int path) {
+      return methodIds[path];
+    }
+
+    /**
+     * Number of methods on the path.
+     */
+    public int depth(int path) {
+      return depths[path];
+    }
+
+    public int child(int parent, int methodId) {
+      long key = (long) parent << 32 | (methodId & 0xFFFFFFFFL);
+      Integer child = ids.get(key);
+      if (child != null) {
+        return child;
+      }
+      if (size == parents.length) {
+        parents = Arrays.copyOf(parents, size * 2);
+        methodIds = Arrays.copyOf(methodIds, size * 2);
+        depths = Arrays.copyOf(depths, size * 2);
+      }
+      parents[size] = parent;
+      methodIds[size] = methodId;
+      depths[size] = depths[parent] + 1;
+      ids.put(key, size);
+      return size++;
+    }
+
+    /**
+     * Adds the paths of another tree, returns their ids in this tree indexed by their id in the
+     * other one.
+     */
+    public int[] merge(CallPaths other) {
+      int[] mergedPaths = new int[other.size];
+      for (int path = 1; path < other.size; path++) {
+        mergedPaths[path] = child(mergedPaths[other.parents[path]], other.methodIds[path]);
+      }
+      return mergedPaths;
+    }
+  }
+
+  /**
+   * Writes a report line by line through a buffered channel. A line is written as soon as the next
+   * one is started, so the rows have to be produced in the order of the report and only the
+   * current line is kept in memory.
+   */
+  private static class ReportWriter implements AutoCloseable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private final OutputLine currentLine = new OutputLine();
+    private boolean hasLine = false;
+
+    private ReportWriter(String fileName) {
+      this.file = new File(fileName);
+      try {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Writes the current line and starts the next one, the returned line is reused.
+     */
+    public OutputLine newLine() {
+      writeCurrentLine();
+      hasLine = true;
+      return currentLine;
+    }
+
+    private void writeCurrentLine() {
+      if (!hasLine) {
+        return;
+      }
+      currentLine.currentContent.append('\n');
+      byte[] bytes = currentLine.currentContent.toString().getBytes(StandardCharsets.UTF_8);
+      currentLine.currentContent.setLength(0);
+      try {
+        int offset = 0;
+        while (offset < bytes.length) {
+          if (!buffer.hasRemaining()) {
+            flush();
+          }
+          int length = Math.min(bytes.length - offset, buffer.remaining());
+          buffer.put(bytes, offset, length);
+          offset += length;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
 
-      private OutputLine(T hiddenField) {
-        this.hiddenField = hiddenField;
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
       }
+      buffer.clear();
+    }
 
-      public T hiddenField() {
-        return hiddenField;
+    @Override
+    public void close() {
+      try (channel) {
+        writeCurrentLine();
+        flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
 
-      public OutputLine<T> append(String value) {
+      System.out.println("File " + file.getAbsolutePath() + " written.");
+    }
+
+    protected static class OutputLine {
+
+      private final StringBuilder currentContent = new StringBuilder();
+
+      public OutputLine append(String value) {
         currentContent.append(value);
         return this;
       }
 
-      public OutputLine<T> append(int value) {
+      public OutputLine append(int value) {
         currentContent.append(value);
         return this;
       }
 
-      public OutputLine<T> append(long value) {
+      public OutputLine append(long value) {
         currentContent.append(value);
         return this;
       }
 
-      private OutputLine<T> appendCsvDelimiterIfNeeded() {
+      private OutputLine appendCsvDelimiterIfNeeded() {
         if (!currentContent.isEmpty()) {
           currentContent.append(";");
         }
         return this;
       }
 
-      public OutputLine<T> appendCsv(String value) {
+      /**
+       * Appends the value as a quoted JSON string, also safe inside an html script element.
+       */
+      public OutputLine appendJson(String value) {
+        currentContent.append('"');
+        for (int i = 0; i < value.length(); i++) {
+          char c = value.charAt(i);
+          if (c == '"' || c == '\\' || c == '<' || c == '>' || c == '&' || c < 0x20) {
+            currentContent.append(String.format("\\u%04x", (int) c));
+          } else {
+            currentContent.append(c);
+          }
+        }
+        currentContent.append('"');
+        return this;
+      }
+
+      public OutputLine appendCsv(String value) {
         return appendCsvDelimiterIfNeeded().append(value);
       }
 
-      public OutputLine<T> appendCsv(int value) {
+      public OutputLine appendCsv(int value) {
         return appendCsvDelimiterIfNeeded().append(value);
 
       }
 
-      public OutputLine<T> appendCsv(long value) {
+      public OutputLine appendCsv(long value) {
         return appendCsvDelimiterIfNeeded().append(value);
       }
     }
   }
 
-  private static class SimpleFileFactory extends FileFactory<Integer> {
+  /**
+   * Statistics of all calls of one method: when it was called first, its durations, its self
+   * durations and the durations of its sub calls, summed up per call.
+   */
+  private static class MethodStats {
+
+    private final int precision;
+    private final DurationHistogram durations;
+    private final DurationHistogram selfDurations;
+    private final Map<MethodData, SubCallStats> subCalls = new HashMap<>();
+    private long minStartNs = Long.MAX_VALUE;
+
+    /**
+     * @param precision significant decimal digits of the durations, see {@link DurationHistogram}
+     */
+    MethodStats(int precision) {
+      this.precision = precision;
+      this.durations = new DurationHistogram(precision);
+      this.selfDurations = new DurationHistogram(precision);
+    }
 
-    private int currentLine = 0;
+    public long minStartNs() {
+      return minStartNs;
+    }
 
-    public SimpleFileFactory() {
-      super(Integer::compare);
+    public DurationHistogram durations() {
+      return durations;
     }
 
-    public OutputLine<Integer> newLine() {
-      return super.newLine(++currentLine);
+    public DurationHistogram selfDurations() {
+      return selfDurations;
     }
-  }
 
-  private interface StatHelper {
+    public Map<MethodData, SubCallStats> subCalls() {
+      return subCalls;
+    }
 
-    long MILLIS_TO_NANOS = 1_000_000L;
+    public void addDuration(long startNs, long durationNs, int weight) {
+      minStartNs = Math.min(minStartNs, startNs);
+      durations.add(durationNs, weight);
+    }
+
+    public void addSelfDuration(long selfDurationNs, int weight) {
+      selfDurations.add(selfDurationNs, weight);
+    }
+
+    /**
+     * @param durationNs sum of all calls of the sub method within one call
+     */
+    public void addSubCall(MethodData subMethod, long startNs, long durationNs, int weight) {
+      SubCallStats subCall = subCalls.computeIfAbsent(subMethod,
+          k -> new SubCallStats(new DurationHistogram(precision)));
+      subCall.minStartNs = Math.min(subCall.minStartNs, startNs);
+      subCall.durations.add(durationNs, weight);
+    }
 
-    static <T> T p(List<T> sortedList, int pValue) {
-      if (sortedList.isEmpty()) {
-        return null;
+    /**
+     * Adds the calls of another thread or file.
+     */
+    public void merge(MethodStats other) {
+      minStartNs = Math.min(minStartNs, other.minStartNs);
+      durations.merge(other.durations);
+      selfDurations.merge(other.selfDurations);
+      for (Entry<MethodData, SubCallStats> otherSubCall : other.subCalls.entrySet()) {
+        SubCallStats subCall = subCalls.get(otherSubCall.getKey());
+        if (subCall == null) {
+          subCalls.put(otherSubCall.getKey(), otherSubCall.getValue());
+        } else {
+          subCall.minStartNs = Math.min(subCall.minStartNs, otherSubCall.getValue().minStartNs);
+          subCall.durations.merge(otherSubCall.getValue().durations);
+        }
       }
+    }
 
-      int count = sortedList.size();
-      int index = (pValue * count) / 100;
-      if (index >= count) {
-        index = count - 1;
+    /**
+     * Merges statistics indexed by method id into the first array, which is returned.
+     */
+    static MethodStats[] merge(MethodStats[] stats, MethodStats[] otherStats) {
+      for (int methodId = 0; methodId < stats.length; methodId++) {
+        if (stats[methodId] == null) {
+          stats[methodId] = otherStats[methodId];
+        } else if (otherStats[methodId] != null) {
+          stats[methodId].merge(otherStats[methodId]);
+        }
       }
-      return sortedList.get(index);
+      return stats;
     }
 
-    static <K, V> void mergeInto(Map<K, List<V>> destination, Map<K, List<V>> newData) {
-      for (var newEntry : newData.entrySet()) {
-        destination.computeIfAbsent(newEntry.getKey(), k -> new ArrayList<>())
-            .addAll(newEntry.getValue());
+    /**
+     * Maps the statistics indexed by method id to their methods, skipping methods without calls.
+     */
+    static Map<MethodData, MethodStats> byMethod(CallColumns calls, MethodStats[] stats) {
+      Map<MethodData, MethodStats> result = new HashMap<>();
+      for (int methodId = 0; methodId < stats.length; methodId++) {
+        if (stats[methodId] != null) {
+          result.put(calls.methodById(methodId), stats[methodId]);
+        }
       }
+      return result;
+    }
+
+    /**
+     * Sub calls sorted by the start of their first call.
+     */
+    public List<Entry<MethodData, SubCallStats>> sortedSubCalls() {
+      List<Entry<MethodData, SubCallStats>> result = new ArrayList<>(subCalls.entrySet());
+      result.sort(Comparator.comparingLong(e -> e.getValue().minStartNs));
+      return result;
+    }
+  }
+
+  private static class SubCallStats {
+
+    private final DurationHistogram durations;
+    private long minStartNs = Long.MAX_VALUE;
+
+    private SubCallStats(DurationHistogram durations) {
+      this.durations = durations;
     }
 
+    public DurationHistogram durations() {
+      return durations;
+    }
+  }
+
+  private interface StatHelper {
+
+    long MILLIS_TO_NANOS = 1_000_000L;
+
     static long nanosToMillis(long nanoSeconds) {
       return nanoSeconds / MILLIS_TO_NANOS;
     }
+
+    /**
+     * Share of the value in percent, 0 for a sum of 0, e.g. of calls that took no measurable time.
+     */
+    static long percent(long value, long sum) {
+      return sum > 0 ? value * 100 / sum : 0;
+    }
+
+    /**
+     * Milliseconds with three decimals, for values that are often below one millisecond.
+     */
+    static String formatMillis(long nanoSeconds) {
+      // rounded to micros first, so small negative values are not written as -0.000
+      long micros = Math.round(nanoSeconds / 1_000.0);
+      return String.format(Locale.ROOT, "%.3f", micros / 1_000.0);
+    }
+  }
+
+  private interface HtmlHelper {
+
+    static String escapeHtml(String value) {
+      return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    static String toMs(long nanoSeconds) {
+      return format(StatHelper.nanosToMillis(nanoSeconds));
+    }
+
+    static String format(Number value) {
+      return DecimalFormat.getNumberInstance(Locale.GERMANY).format(value);
+    }
   }
 }
@@ -0,0 +1,99 @@
+package de.andre.tracing.aspect;
+
+/**
+ * Layout of the binary trace file, shared by the writer in {@link TracingService} and the reader
+ * in {@link TraceFileAnalyzer}.
+ *
+ * <p>A binary file starts with {@link #BINARY_MAGIC} and {@link #BINARY_VERSION}, followed by
+ * records. A preallocated, memory-mapped segment starts with {@link #SEGMENT_MAGIC},
+ * {@link #BINARY_VERSION} and the long offset up to which its records are valid; every segment
+ * repeats the dictionary records it needs. Each record starts with a one byte tag. Signatures and
+ * threads are written once as dictionary records and referenced by their id in the fixed-width
+ * event records.
+ *
+ * <pre>
+ *   TAG_METHOD: int methodId, int length, byte[length] signature (UTF-8)
+ *   TAG_THREAD: int threadId, int threadHashCode, int length, byte[length] threadName (UTF-8)
+ *   TAG_EVENT:  long startNs, long durationNs, int methodId, int threadId, short depth
+ *   TAG_DROPPED: int methodId, long count
+ *   TAG_CLOCK:  long epochMillis, long nanoTime
+ *   TAG_SAMPLED_EVENT: long startNs, long durationNs, int methodId, int threadId, int weight,
+ *                      short depth
+ *   TAG_EVENT_WITH_UNTRACED: long startNs, long durationNs, int methodId, int threadId,
+ *                            int weight, int untracedCount, long untracedNs, short depth
+ * </pre>
+ *
+ * <p>A sampled event stands for {@code weight} calls. An event with untraced children carries the
+ * number and the total duration of its direct children that were not written, without the time
+ * of their written descendants, which belong to the event instead. The depth is the
+ * number of calls that enclosed the call when it ended, {@code 0} for a root call. Version 1 files
+ * have no depth.
+ *
+ * <p>Csv files start with {@code #version;2}. Lines of calls that were sampled, have untraced
+ * children or are not a root call are prefixed with
+ * {@code *weight,untracedCount,untracedNs,depth;}. Version 1 prefixes are {@code *weight;} or
+ * {@code *weight,untracedCount,untracedNs;}.
+ *
+ * <p>Every file or segment starts with a clock record ({@code #clock;epochMillis;nanoTime} in csv)
+ * that maps the {@link System#nanoTime()} based start times to wall-clock time. A directory of
+ * rotated segments contains a {@link #MANIFEST_FILE_NAME} with one line per finished segment:
+ * {@code segment;fromEpochMillis;toEpochMillis;events}.
+ *
+ * <p>A compressed file starts with {@link #COMPRESSED_MAGIC} and {@link #BINARY_VERSION}, followed
+ * by blocks of {@code int uncompressedLength, int compressedLength, byte[compressedLength]}. Each
+ * block holds raw deflate compressed records, starting with a clock record and repeating the
+ * dictionary records it needs, so blocks can be decompressed independently.
+ *
+ * <p>A csv, binary or compressed file is accompanied by a sparse index {@code <file>.idx} with
+ * the header {@link #INDEX_HEADER} and one line per block of records:
+ * {@code offset;length;fromEpochMillis;toEpochMillis;events}. A block starts at a record (or
+ * compressed block) boundary, binary blocks repeat the dictionary records they need. The records
+ * before the first block are the file header, records after the last block are not indexed.
+ *
+ * <p>Csv files contain one line per call ({@code startNs;durationNs;signature;threadHashCode;
+ * threadName}). Lines starting with {@code #} carry additional information, e.g.
+ * {@code #dropped;count;signature}.
+ */
+interface TraceFileFormat {
+
+  /**
+   * "TRCB" - can never be the start of a csv trace file, which starts with a digit or {@code #}.
+   */
+  int BINARY_MAGIC = 0x54524342;
+  int BINARY_VERSION = 2;
+  int BINARY_HEADER_LENGTH = 8;
+
+  /**
+   * "TRCS"
+   */
+  int SEGMENT_MAGIC = 0x54524353;
+  int SEGMENT_HEADER_LENGTH = 16;
+  int SEGMENT_VALID_LENGTH_OFFSET = 8;
+
+  /**
+   * "TRCZ"
+   */
+  int COMPRESSED_MAGIC = 0x5452435A;
+  int COMPRESSED_BLOCK_HEADER_LENGTH = 8;
+
+  byte TAG_METHOD = 1;
+  byte TAG_THREAD = 2;
+  byte TAG_EVENT = 3;
+  byte TAG_DROPPED = 4;
+  byte TAG_CLOCK = 5;
+  byte TAG_SAMPLED_EVENT = 6;
+  byte TAG_EVENT_WITH_UNTRACED = 7;
+
+  String CSV_DROPPED = "#dropped";
+  String CSV_CLOCK = "#clock";
+  String CSV_VERSION = "#version";
+  int CSV_FORMAT_VERSION = 2;
+  char CSV_SAMPLED_PREFIX = '*';
+  char CSV_PREFIX_SEPARATOR = ',';
+
+  String MANIFEST_FILE_NAME = "manifest.csv";
+  String MANIFEST_HEADER = "segment;fromEpochMillis;toEpochMillis;events";
+
+  String INDEX_FILE_SUFFIX = ".idx";
+  String INDEX_HEADER = "offset;length;fromEpochMillis;toEpochMillis;events";
+}
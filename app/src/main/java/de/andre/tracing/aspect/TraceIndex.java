@@ -0,0 +1,135 @@
+package de.andre.tracing.aspect;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.slf4j.Logger;
+
+/**
+ * Sparse index of a trace file, written next to it as {@code <file>.idx}. The records of the file
+ * are split into blocks of about {@code maxEvents} events or {@code maxSpanNs} between their
+ * start times, a line per finished block holds its byte range and the time range of its events
+ * (see {@link TraceFileFormat}). A block starts at a record boundary and, in binary files, repeats
+ * the dictionary records it needs, so a reader can seek to it. Used by the writing thread only.
+ */
+final class TraceIndex {
+
+  private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
+
+  private final long maxEvents;
+  private final long maxSpanNs;
+
+  private File indexFile = null;
+  private BufferedWriter writer = null;
+  private long clockEpochMillis;
+  private long clockNanoTime;
+  private long blockOffset;
+  private long minStartNs;
+  private long maxStartNs;
+  private long maxEndNs;
+  private long events;
+
+  /**
+   * @param maxEvents events per block
+   * @param maxSpanNs time between the first and the last start of a block
+   */
+  TraceIndex(long maxEvents, long maxSpanNs) {
+    if (maxEvents < 1 || maxSpanNs < 1) {
+      throw new IllegalArgumentException("Index events and interval must be positive");
+    }
+    this.maxEvents = maxEvents;
+    this.maxSpanNs = maxSpanNs;
+  }
+
+  /**
+   * Starts the index of the next trace file, its first block starts at the offset.
+   */
+  void start(File traceFile, long offset, long clockEpochMillis, long clockNanoTime) {
+    this.indexFile = new File(traceFile.getPath() + TraceFileFormat.INDEX_FILE_SUFFIX);
+    this.clockEpochMillis = clockEpochMillis;
+    this.clockNanoTime = clockNanoTime;
+    try {
+      writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8);
+      writer.write(TraceFileFormat.INDEX_HEADER);
+      writer.newLine();
+    } catch (IOException e) {
+      log.error("Cannot write index {}, the trace is not indexed", indexFile.getAbsolutePath(), e);
+      writer = null;
+    }
+    startBlock(offset);
+  }
+
+  boolean isBlockDue() {
+    return events >= maxEvents || (events > 0 && maxStartNs - minStartNs >= maxSpanNs);
+  }
+
+  /**
+   * Finishes the current block at the offset and starts the next one there.
+   */
+  void startBlock(long offset) {
+    finishBlock(offset);
+    blockOffset = offset;
+    minStartNs = Long.MAX_VALUE;
+    maxStartNs = Long.MIN_VALUE;
+    maxEndNs = Long.MIN_VALUE;
+    events = 0;
+  }
+
+  void eventsWritten(long minStartNs, long maxStartNs, long maxEndNs, long count) {
+    this.minStartNs = Math.min(this.minStartNs, minStartNs);
+    this.maxStartNs = Math.max(this.maxStartNs, maxStartNs);
+    this.maxEndNs = Math.max(this.maxEndNs, maxEndNs);
+    this.events += count;
+  }
+
+  void flush() {
+    if (writer != null) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        log.warn("Cannot write index {}", indexFile.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * Finishes the last block at the end of the trace file.
+   */
+  void finish(long endOffset) {
+    finishBlock(endOffset);
+    events = 0;
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        log.warn("Cannot close index {}", indexFile.getAbsolutePath(), e);
+      }
+      writer = null;
+    }
+  }
+
+  private void finishBlock(long endOffset) {
+    if (writer == null || events == 0) {
+      return;
+    }
+    try {
+      writer.write(blockOffset + ";" + (endOffset - blockOffset) + ";"
+          + toEpochMillis(minStartNs) + ";" + toEpochMillis(maxEndNs) + ";" + events);
+      writer.newLine();
+    } catch (IOException e) {
+      log.error("Cannot write index {}, the trace is not indexed", indexFile.getAbsolutePath(), e);
+      try {
+        writer.close();
+      } catch (IOException ignored) {
+        // already reported
+      }
+      writer = null;
+    }
+  }
+
+  private long toEpochMillis(long nanoTime) {
+    return clockEpochMillis + Math.floorDiv(nanoTime - clockNanoTime, 1_000_000L);
+  }
+}
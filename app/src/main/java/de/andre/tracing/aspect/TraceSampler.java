@@ -0,0 +1,113 @@
+package de.andre.tracing.aspect;
+
+import java.util.Arrays;
+
+/**
+ * Decides per call whether it is traced and with which weight, i.e. how many calls the kept trace
+ * stands for. The decision only reads a rate and increments a counter of the calling thread.
+ *
+ * <p>{@link Mode#ADAPTIVE} keeps every n-th call of a method, n is recalculated every second by
+ * the writing thread from the weights it has written, so each method stays within its budget of
+ * traces per second. Calls slower than {@code keepSlowerThanNs} are always kept with weight 1.
+ */
+final class TraceSampler {
+
+  private static final long WINDOW_NS = 1_000_000_000L;
+
+  private final Mode mode;
+  private final int fixedRate;
+  private final int budgetPerSecond;
+  private final long keepSlowerThanNs;
+
+  // written by the writing thread only, index is the method id
+  private volatile int[] adaptiveRates = new int[0];
+  private long[] weightSums = new long[256];
+  private long windowStartNs = System.nanoTime();
+
+  /**
+   * @param fixedRate        with {@link Mode#FIXED} 1 of fixedRate calls is kept
+   * @param budgetPerSecond  with {@link Mode#ADAPTIVE} traces per second and method
+   * @param keepSlowerThanNs calls at least that slow are always kept, {@code 0} disables it
+   */
+  TraceSampler(Mode mode, int fixedRate, int budgetPerSecond, long keepSlowerThanNs) {
+    if (fixedRate < 1 || budgetPerSecond < 1) {
+      throw new IllegalArgumentException("Sampling rate and budget must be positive");
+    }
+    this.mode = mode;
+    this.fixedRate = fixedRate;
+    this.budgetPerSecond = budgetPerSecond;
+    this.keepSlowerThanNs = keepSlowerThanNs > 0 ? keepSlowerThanNs : Long.MAX_VALUE;
+  }
+
+  boolean isAdaptive() {
+    return mode == Mode.ADAPTIVE;
+  }
+
+  /**
+   * Called by the traced thread. Returns {@code 0} if the call is not traced.
+   */
+  int weight(TraceBuffer traceBuffer, int methodId, long durationNs) {
+    if (mode == Mode.NONE || durationNs >= keepSlowerThanNs) {
+      return 1;
+    }
+    int rate = mode == Mode.FIXED ? fixedRate : adaptiveRate(methodId);
+    if (rate <= 1) {
+      return 1;
+    }
+    return traceBuffer.countCall(methodId) % rate == 0 ? rate : 0;
+  }
+
+  private int adaptiveRate(int methodId) {
+    int[] rates = adaptiveRates;
+    return methodId < rates.length ? rates[methodId] : 1;
+  }
+
+  /**
+   * Called by the writing thread for every written batch.
+   */
+  void observe(TraceBuffer.Batch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      int methodId = batch.methodId(i);
+      if (methodId >= weightSums.length) {
+        weightSums = Arrays.copyOf(weightSums, Math.max(methodId + 1, weightSums.length * 2));
+      }
+      weightSums[methodId] += batch.weight(i);
+    }
+  }
+
+  /**
+   * Called by the writing thread, recalculates the rates once per second.
+   */
+  void adapt() {
+    long nowNs = System.nanoTime();
+    long elapsedNs = nowNs - windowStartNs;
+    if (elapsedNs < WINDOW_NS) {
+      return;
+    }
+
+    int[] rates = new int[weightSums.length];
+    for (int methodId = 0; methodId < rates.length; methodId++) {
+      // the weights estimate all calls of the method, sampled or not
+      double callsPerSecond = weightSums[methodId] * (double) WINDOW_NS / elapsedNs;
+      rates[methodId] = (int) Math.max(1, Math.ceil(callsPerSecond / budgetPerSecond));
+    }
+    Arrays.fill(weightSums, 0);
+    windowStartNs = nowNs;
+    adaptiveRates = rates;
+  }
+
+  enum Mode {
+    NONE,
+    FIXED,
+    ADAPTIVE;
+
+    static Mode parse(String value) {
+      return switch (value) {
+        case "none" -> NONE;
+        case "fixed" -> FIXED;
+        case "adaptive" -> ADAPTIVE;
+        default -> throw new IllegalArgumentException("Unknown tracing.sampling " + value);
+      };
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package de.andre.tracing.aspect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import org.slf4j.Logger;
+
+/**
+ * Files a trace output writes to. Either one single file, or a directory of rotated segments with
+ * a manifest of the time range and event count of every finished segment. Finished segments
+ * beyond the newest {@code maxSegments} are deleted, oldest first. Used by the writing thread
+ * only.
+ */
+final class TraceSegments {
+
+  private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
+
+  private final File singleFile;
+  private final File directory;
+  private final int maxSegments;
+  private final Deque<FinishedSegment> finishedSegments = new ArrayDeque<>();
+
+  private int number = 0;
+  private File file = null;
+  private long clockEpochMillis;
+  private long clockNanoTime;
+  private long minStartNs;
+  private long maxEndNs;
+  private long events;
+
+  private TraceSegments(File singleFile, File directory, int maxSegments) {
+    this.singleFile = singleFile;
+    this.directory = directory;
+    this.maxSegments = maxSegments;
+  }
+
+  static TraceSegments singleFile(File file) {
+    return new TraceSegments(file, null, 0);
+  }
+
+  /**
+   * @param maxSegments number of finished segments to keep, {@code 0} keeps all
+   */
+  static TraceSegments directory(File directory, int maxSegments) {
+    return new TraceSegments(null, directory, maxSegments);
+  }
+
+  boolean isRotating() {
+    return directory != null;
+  }
+
+  /**
+   * Increases with every started file.
+   */
+  int number() {
+    return number;
+  }
+
+  File file() {
+    return file;
+  }
+
+  long clockEpochMillis() {
+    return clockEpochMillis;
+  }
+
+  long clockNanoTime() {
+    return clockNanoTime;
+  }
+
+  long events() {
+    return events;
+  }
+
+  long ageNs() {
+    return System.nanoTime() - clockNanoTime;
+  }
+
+  /**
+   * Starts the next file and takes a new clock anchor for it.
+   */
+  File start() throws IOException {
+    number++;
+    if (isRotating()) {
+      Files.createDirectories(directory.toPath());
+      file = new File(directory, String.format("segment_%06d.trc", number));
+    } else {
+      file = singleFile;
+    }
+    clockEpochMillis = System.currentTimeMillis();
+    clockNanoTime = System.nanoTime();
+    minStartNs = Long.MAX_VALUE;
+    maxEndNs = Long.MIN_VALUE;
+    events = 0;
+    log.info("Tracing file {} created.", file.getAbsolutePath());
+    return file;
+  }
+
+  void eventWritten(long startNs, long durationNs) {
+    eventsWritten(startNs, startNs + durationNs, 1);
+  }
+
+  void eventsWritten(long minStartNs, long maxEndNs, long count) {
+    this.minStartNs = Math.min(this.minStartNs, minStartNs);
+    this.maxEndNs = Math.max(this.maxEndNs, maxEndNs);
+    this.events += count;
+  }
+
+  /**
+   * Adds the current file to the manifest and deletes the segments beyond the retention limit,
+   * together with their index.
+   */
+  void finish() {
+    if (file == null) {
+      return;
+    }
+    log.info("Tracing file {} finished with {} calls.", file.getAbsolutePath(), events);
+    if (isRotating()) {
+      long fromEpochMillis = events == 0 ? clockEpochMillis : toEpochMillis(minStartNs);
+      long toEpochMillis = events == 0 ? clockEpochMillis : toEpochMillis(maxEndNs);
+      finishedSegments.addLast(
+          new FinishedSegment(file, fromEpochMillis, toEpochMillis, events));
+      while (maxSegments > 0 && finishedSegments.size() > maxSegments) {
+        File oldest = finishedSegments.removeFirst().file();
+        if (oldest.delete()) {
+          log.info("Tracing file {} deleted, only {} segments are kept.",
+              oldest.getAbsolutePath(), maxSegments);
+        } else {
+          log.warn("Cannot delete tracing file {}", oldest.getAbsolutePath());
+        }
+        // memory-mapped segments have no index
+        File oldestIndex = new File(oldest.getPath() + TraceFileFormat.INDEX_FILE_SUFFIX);
+        if (oldestIndex.exists() && !oldestIndex.delete()) {
+          log.warn("Cannot delete tracing index {}", oldestIndex.getAbsolutePath());
+        }
+      }
+      writeManifest();
+    }
+    file = null;
+  }
+
+  private long toEpochMillis(long nanoTime) {
+    return clockEpochMillis + Math.floorDiv(nanoTime - clockNanoTime, 1_000_000L);
+  }
+
+  private void writeManifest() {
+    List<String> lines = new ArrayList<>();
+    lines.add(TraceFileFormat.MANIFEST_HEADER);
+    for (FinishedSegment segment : finishedSegments) {
+      lines.add(segment.file().getName() + ";" + segment.fromEpochMillis() + ";"
+          + segment.toEpochMillis() + ";" + segment.events());
+    }
+    Path manifest = new File(directory, TraceFileFormat.MANIFEST_FILE_NAME).toPath();
+    Path tempManifest = new File(directory, TraceFileFormat.MANIFEST_FILE_NAME + ".tmp").toPath();
+    try {
+      // readers never see a half written manifest
+      Files.write(tempManifest, lines, StandardCharsets.UTF_8);
+      Files.move(tempManifest, manifest, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Cannot write manifest {}", manifest.toAbsolutePath(), e);
+    }
+  }
+
+  private record FinishedSegment(
+      File file,
+      long fromEpochMillis,
+      long toEpochMillis,
+      long events
+  ) {
+
+  }
+}
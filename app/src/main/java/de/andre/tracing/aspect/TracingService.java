@@ -3,15 +3,29 @@ package de.andre.tracing.aspect;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import org.aspectj.lang.JoinPoint;
 import org.slf4j.Logger;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.stereotype.Component;
@@ -22,29 +36,159 @@ public class TracingService {
 
   private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
 
-  private static final Queue<Datapoint> UNWRITTEN_TRACES = new ConcurrentLinkedQueue<>();
+  private static final ConfigHelper CONFIG = new ConfigHelper(new String[0]);
+  private static final int BATCH_SIZE = CONFIG.intValue("tracing.batchSize", 1024);
+  private static final TraceBuffer.Settings TRACE_BUFFER_SETTINGS = new TraceBuffer.Settings(
+      CONFIG.intValue("tracing.bufferSize", 4096),
+      BATCH_SIZE,
+      TraceBuffer.OverflowPolicy.parse(CONFIG.value("tracing.overflowPolicy", "dropNewest")),
+      Duration.ofMillis(CONFIG.intValue("tracing.blockTimeoutMs", 10)).toNanos(),
+      CONFIG.intValue("tracing.overflowSampleRate", 10));
 
-  public static void trace(
+  private static final List<TraceBuffer> TRACE_BUFFERS = new CopyOnWriteArrayList<>();
+  private static final DroppedTraces DROPPED_TRACES = new DroppedTraces();
+  private static final SignatureRegistry SIGNATURE_REGISTRY = new SignatureRegistry();
+  private static final TraceSampler TRACE_SAMPLER = new TraceSampler(
+      TraceSampler.Mode.parse(CONFIG.value("tracing.sampling", "none")),
+      CONFIG.intValue("tracing.samplingRate", 100),
+      CONFIG.intValue("tracing.samplingBudget", 1000),
+      Duration.ofMillis(CONFIG.intValue("tracing.samplingKeepSlowerThanMs", 0)).toNanos());
+  private static final LiveStats LIVE_STATS = CONFIG.value("tracing.stats", "true").equals("true")
+      ? new LiveStats(SIGNATURE_REGISTRY, CONFIG.intValue("tracing.statsWindowSeconds", 10),
+      CONFIG.intValue("tracing.statsWindows", 6))
+      : null;
+  private static final long MIN_DURATION_NS =
+      TimeUnit.MICROSECONDS.toNanos(CONFIG.intValue("tracing.minDurationUs", 0));
+  private static final AtomicInteger NEXT_THREAD_ID = new AtomicInteger();
+  private static final ThreadLocal<TraceBuffer> CURRENT_TRACE_BUFFER =
+      ThreadLocal.withInitial(TracingService::registerTraceBuffer);
+  private static final Runnable WAKE_UP_WRITING_THREAD = TracingService::wakeUpWritingThread;
+  private static volatile Thread activeWritingThread = null;
+
+  public static int methodId(JoinPoint.StaticPart staticPart) {
+    return SIGNATURE_REGISTRY.methodId(staticPart);
+  }
+
+  /**
+   * Called when a traced call starts, the returned buffer has to be passed to
+   * {@link #exit(TraceBuffer, long, long, int)}.
+   */
+  static TraceBuffer enter() {
+    TraceBuffer traceBuffer = CURRENT_TRACE_BUFFER.get();
+    traceBuffer.enterCall();
+    return traceBuffer;
+  }
+
+  static void exit(
+      TraceBuffer traceBuffer,
       long startNs,
       long durationNs,
-      String signature,
-      int threadHashCode,
-      String threadName) {
-    UNWRITTEN_TRACES.offer(
-        new Datapoint(startNs, durationNs, signature, threadHashCode, threadName));
+      int methodId) {
+    boolean traced = false;
+    if (durationNs >= MIN_DURATION_NS) {
+      int weight = TRACE_SAMPLER.weight(traceBuffer, methodId, durationNs);
+      traced = weight > 0 && traceBuffer.offer(startNs, durationNs, methodId, weight);
+    }
+    traceBuffer.exitCall(durationNs, traced);
+  }
+
+  private static TraceBuffer registerTraceBuffer() {
+    TraceBuffer traceBuffer = new TraceBuffer(Thread.currentThread(),
+        NEXT_THREAD_ID.getAndIncrement(), TRACE_BUFFER_SETTINGS, DROPPED_TRACES,
+        WAKE_UP_WRITING_THREAD);
+    TRACE_BUFFERS.add(traceBuffer);
+    return traceBuffer;
+  }
+
+  private static void wakeUpWritingThread() {
+    Thread writingThread = activeWritingThread;
+    if (writingThread != null) {
+      LockSupport.unpark(writingThread);
+    }
   }
 
   private final WritingThread writingThread;
 
   public TracingService() {
-    String filename =
-        "trace_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmm")) + ".trc";
-    CsvTraceFileWriter csvTraceFileWriter = new CsvTraceFileWriter(filename);
-    this.writingThread = new WritingThread(UNWRITTEN_TRACES, csvTraceFileWriter);
+    String baseName =
+        "trace_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmm"));
+    String format = CONFIG.value("tracing.format", "csv");
+    SegmentHeader fileHeader = switch (format) {
+      case "csv" -> CsvTraceFileWriter::fileHeader;
+      case "binary" -> BinaryTraceFileWriter::fileHeader;
+      default -> throw new IllegalArgumentException("Unknown tracing.format " + format);
+    };
+    TraceOutput output = createTraceOutput(baseName, format, fileHeader);
+    TraceFileWriter traceFileWriter = format.equals("binary")
+        ? new BinaryTraceFileWriter(output, SIGNATURE_REGISTRY)
+        : new CsvTraceFileWriter(output, SIGNATURE_REGISTRY);
+    Duration flushInterval = Duration.ofMillis(CONFIG.intValue("tracing.flushIntervalMs", 100));
+    this.writingThread = new WritingThread(TRACE_BUFFERS, DROPPED_TRACES, TRACE_SAMPLER,
+        LIVE_STATS, traceFileWriter, BATCH_SIZE, flushInterval);
+  }
+
+  /**
+   * Latest published per method statistics, {@code null} if {@code tracing.stats} is disabled.
+   */
+  LiveStats.Snapshot stats() {
+    return LIVE_STATS != null ? LIVE_STATS.snapshot() : null;
+  }
+
+  private static TraceOutput createTraceOutput(String baseName, String format,
+      SegmentHeader fileHeader) {
+    String outputType = CONFIG.value("tracing.output", "file");
+    long rotateBytes = (long) CONFIG.intValue("tracing.rotateSizeMb", 0) << 20;
+    long rotateAgeNs = Duration.ofMinutes(CONFIG.intValue("tracing.rotateMinutes", 0)).toNanos();
+    int maxSegments = CONFIG.intValue("tracing.maxSegments", 0);
+    String compression = CONFIG.value("tracing.compression", "none");
+    if (!compression.equals("none") && !compression.equals("deflate")) {
+      throw new IllegalArgumentException("Unknown tracing.compression " + compression);
+    }
+    if (compression.equals("deflate") && (!format.equals("binary") || outputType.equals("mapped"))) {
+      throw new IllegalArgumentException(
+          "tracing.compression=deflate requires tracing.format=binary and tracing.output=file");
+    }
+    return switch (outputType) {
+      case "file" -> {
+        TraceSegments segments = rotateBytes > 0 || rotateAgeNs > 0
+            ? TraceSegments.directory(new File(baseName), maxSegments)
+            : TraceSegments.singleFile(new File(baseName + ".trc"));
+        int writeBufferSize = CONFIG.intValue("tracing.writeBufferSize", 1 << 20);
+        TraceIndex index = CONFIG.value("tracing.index", "true").equals("true")
+            ? new TraceIndex(CONFIG.intValue("tracing.indexEvents", 100_000),
+            Duration.ofMillis(CONFIG.intValue("tracing.indexIntervalMs", 1000)).toNanos())
+            : null;
+        if (compression.equals("none")) {
+          yield new ChannelTraceOutput(segments, fileHeader, index, writeBufferSize,
+              rotateBytes > 0 ? rotateBytes : Long.MAX_VALUE, rotateAgeNs);
+        }
+        int blockSize = CONFIG.intValue("tracing.compressionBlockSize", 256 << 10);
+        if (blockSize > writeBufferSize / 2) {
+          throw new IllegalArgumentException(
+              "tracing.compressionBlockSize must not exceed half of tracing.writeBufferSize");
+        }
+        yield new DeflateTraceOutput(
+            new ChannelTraceOutput(segments, DeflateTraceOutput::fileHeader, index,
+                writeBufferSize, rotateBytes > 0 ? rotateBytes : Long.MAX_VALUE, rotateAgeNs),
+            BinaryTraceFileWriter::clockRecord,
+            CONFIG.intValue("tracing.compressionLevel", Deflater.BEST_SPEED), blockSize);
+      }
+      case "mapped" -> {
+        if (!format.equals("binary")) {
+          throw new IllegalArgumentException("tracing.output=mapped requires tracing.format=binary");
+        }
+        yield new MappedSegmentTraceOutput(
+            TraceSegments.directory(new File(baseName), maxSegments),
+            BinaryTraceFileWriter::clockRecord,
+            CONFIG.intValue("tracing.segmentSize", 64 << 20), rotateAgeNs);
+      }
+      default -> throw new IllegalArgumentException("Unknown tracing.output " + outputType);
+    };
   }
 
   @PostConstruct
   public void init() {
+    activeWritingThread = this.writingThread;
     this.writingThread.start();
   }
 
@@ -59,6 +203,7 @@ public class TracingService {
 
     // force stop
     this.writingThread.interrupt();
+    activeWritingThread = null;
   }
 
   private static class WritingThread extends Thread {
@@ -66,120 +211,780 @@ public class TracingService {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
 
     private final AtomicBoolean doStop = new AtomicBoolean(false);
-    private final Queue<Datapoint> unwrittenTraces;
+    private final List<TraceBuffer> traceBuffers;
+    private final DroppedTraces droppedTraces;
+    private final TraceSampler traceSampler;
+    private final LiveStats liveStats;
     private final TraceFileWriter traceFileWriter;
+    private final TraceBuffer.Batch batch;
+    private final long flushIntervalNs;
 
     private WritingThread(
-        Queue<Datapoint> unwrittenTraces,
-        TraceFileWriter traceFileWriter) {
-      this.unwrittenTraces = unwrittenTraces;
+        List<TraceBuffer> traceBuffers,
+        DroppedTraces droppedTraces,
+        TraceSampler traceSampler,
+        LiveStats liveStats,
+        TraceFileWriter traceFileWriter,
+        int batchSize,
+        Duration flushInterval) {
+      this.traceBuffers = traceBuffers;
+      this.droppedTraces = droppedTraces;
+      this.traceSampler = traceSampler;
+      this.liveStats = liveStats;
       this.traceFileWriter = traceFileWriter;
+      this.batch = new TraceBuffer.Batch(batchSize);
+      this.flushIntervalNs = flushInterval.toNanos();
     }
 
     public void requestStop() {
       this.doStop.set(true);
+      LockSupport.unpark(this);
     }
 
     @Override
     public void run() {
       try {
         while (true) {
-          Datapoint datapoint = unwrittenTraces.poll();
-          if (datapoint == null) {
-            if (doStop.get()) {
-              log.info("All traces written and stop is requested.");
-              break;
-            }
-            log.info("All traces written so far. Wait some time ...");
-            Thread.sleep(2_000);
-          } else {
-            traceFileWriter.writeTraceToFile(datapoint);
+          boolean written = writeAllTraceBuffers();
+          if (traceSampler.isAdaptive()) {
+            traceSampler.adapt();
+          }
+          if (liveStats != null) {
+            liveStats.publish();
+          }
+          if (written) {
+            traceFileWriter.flush();
+          } else if (doStop.get()) {
+            log.info("All traces written and stop is requested.");
+            break;
+          }
+
+          if (isInterrupted()) {
+            log.warn("Thread was interrupted");
+            break;
+          }
+          if (!doStop.get()) {
+            // woken up early by a trace buffer reaching its high-water mark or by requestStop()
+            LockSupport.parkNanos(this, flushIntervalNs);
           }
         }
-      } catch (InterruptedException ex) {
-        log.warn("Thread was interrupted", ex);
       } finally {
         traceFileWriter.close();
       }
     }
-  }
 
-  private record Datapoint(
-      long startNs,
-      long durationNs,
-      String signature,
-      int threadHashCode,
-      String threadName
-  ) {
+    private boolean writeAllTraceBuffers() {
+      long written = 0;
+      for (TraceBuffer traceBuffer : traceBuffers) {
+        boolean ownerAlive = traceBuffer.isOwnerAlive();
+
+        int count;
+        while ((count = traceBuffer.drainTo(batch)) > 0) {
+          traceFileWriter.writeTracesToFile(batch);
+          if (traceSampler.isAdaptive()) {
+            traceSampler.observe(batch);
+          }
+          if (liveStats != null) {
+            liveStats.observe(batch);
+          }
+          written += count;
+        }
+
+        if (!ownerAlive && traceBuffer.isEmpty()) {
+          traceBuffers.remove(traceBuffer);
+        }
+      }
 
+      long dropped = droppedTraces.drainTo(traceFileWriter::writeDroppedToFile);
+      if (dropped > 0) {
+        log.warn("{} traces dropped, trace buffers were full.", dropped);
+      }
+      return written + dropped > 0;
+    }
   }
 
   private interface TraceFileWriter {
 
-    void writeTraceToFile(Datapoint datapoint);
+    void writeTracesToFile(TraceBuffer.Batch batch);
+
+    void writeDroppedToFile(int methodId, long count);
+
+    void flush();
 
     void close();
   }
 
   private static class CsvTraceFileWriter implements TraceFileWriter {
 
+    private static final byte SEPARATOR = ';';
+    private static final byte NEW_LINE = '\n';
+    private static final byte[] DROPPED = TraceFileFormat.CSV_DROPPED.getBytes(
+        StandardCharsets.UTF_8);
+    private static final byte[] CLOCK = TraceFileFormat.CSV_CLOCK.getBytes(
+        StandardCharsets.UTF_8);
+    private static final byte[] VERSION = TraceFileFormat.CSV_VERSION.getBytes(
+        StandardCharsets.UTF_8);
+    private static final int MAX_DECIMAL_LENGTH = 20;
+
+    private final TraceOutput output;
+    private final SignatureRegistry signatureRegistry;
+
+    public CsvTraceFileWriter(TraceOutput output, SignatureRegistry signatureRegistry) {
+      this.output = output;
+      this.signatureRegistry = signatureRegistry;
+    }
+
+    static byte[] fileHeader(long epochMillis, long nanoTime) {
+      ByteBuffer buffer = ByteBuffer.allocate(
+          VERSION.length + CLOCK.length + 3 * MAX_DECIMAL_LENGTH + 5);
+      buffer.put(VERSION);
+      buffer.put(SEPARATOR);
+      putDecimal(buffer, TraceFileFormat.CSV_FORMAT_VERSION);
+      buffer.put(NEW_LINE);
+      buffer.put(CLOCK);
+      buffer.put(SEPARATOR);
+      putDecimal(buffer, epochMillis);
+      buffer.put(SEPARATOR);
+      putDecimal(buffer, nanoTime);
+      buffer.put(NEW_LINE);
+      return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Override
+    public void writeTracesToFile(TraceBuffer.Batch batch) {
+      TraceBuffer thread = batch.source();
+      byte[] threadName = thread.threadNameUtf8();
+      for (int i = 0; i < batch.size(); i++) {
+        byte[] signature = signatureRegistry.signatureUtf8(batch.methodId(i));
+        ByteBuffer buffer = output.reserve(
+            7 * MAX_DECIMAL_LENGTH + signature.length + threadName.length + 10);
+        int weight = batch.weight(i);
+        int untracedCount = batch.untracedCount(i);
+        short depth = batch.depth(i);
+        if (weight != 1 || untracedCount > 0 || depth > 0) {
+          buffer.put((byte) TraceFileFormat.CSV_SAMPLED_PREFIX);
+          putDecimal(buffer, weight);
+          buffer.put((byte) TraceFileFormat.CSV_PREFIX_SEPARATOR);
+          putDecimal(buffer, untracedCount);
+          buffer.put((byte) TraceFileFormat.CSV_PREFIX_SEPARATOR);
+          putDecimal(buffer, batch.untracedNs(i));
+          buffer.put((byte) TraceFileFormat.CSV_PREFIX_SEPARATOR);
+          putDecimal(buffer, depth);
+          buffer.put(SEPARATOR);
+        }
+        putDecimal(buffer, batch.startNs(i));
+        buffer.put(SEPARATOR);
+        putDecimal(buffer, batch.durationNs(i));
+        buffer.put(SEPARATOR);
+        buffer.put(signature);
+        buffer.put(SEPARATOR);
+        putDecimal(buffer, thread.threadHashCode());
+        buffer.put(SEPARATOR);
+        buffer.put(threadName);
+        buffer.put(NEW_LINE);
+        output.eventWritten(batch.startNs(i), batch.durationNs(i));
+      }
+    }
+
+    @Override
+    public void writeDroppedToFile(int methodId, long count) {
+      byte[] signature = signatureRegistry.signatureUtf8(methodId);
+      ByteBuffer buffer = output.reserve(
+          DROPPED.length + MAX_DECIMAL_LENGTH + signature.length + 3);
+      buffer.put(DROPPED);
+      buffer.put(SEPARATOR);
+      putDecimal(buffer, count);
+      buffer.put(SEPARATOR);
+      buffer.put(signature);
+      buffer.put(NEW_LINE);
+    }
+
+    @Override
+    public void flush() {
+      output.flush();
+    }
+
+    @Override
+    public void close() {
+      output.close();
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+      if (value < 0) {
+        if (value == Long.MIN_VALUE) {
+          buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+          return;
+        }
+        buffer.put((byte) '-');
+        value = -value;
+      }
+
+      // write the digits backwards, then reverse them in place
+      int start = buffer.position();
+      do {
+        buffer.put((byte) ('0' + value % 10));
+        value /= 10;
+      } while (value != 0);
+      for (int left = start, right = buffer.position() - 1; left < right; left++, right--) {
+        byte tmp = buffer.get(left);
+        buffer.put(left, buffer.get(right));
+        buffer.put(right, tmp);
+      }
+    }
+  }
+
+  private static class BinaryTraceFileWriter implements TraceFileWriter {
+
+    private static final int EVENT_LENGTH = 1 + 8 + 8 + 4 + 4 + 2;
+    private static final int SAMPLED_EVENT_LENGTH = EVENT_LENGTH + 4;
+    private static final int EVENT_WITH_UNTRACED_LENGTH = SAMPLED_EVENT_LENGTH + 4 + 8;
+    private static final int DROPPED_LENGTH = 1 + 4 + 8;
+    private static final int CLOCK_LENGTH = 1 + 8 + 8;
+
+    private final TraceOutput output;
+    private final SignatureRegistry signatureRegistry;
+    private final BitSet writtenMethodIds = new BitSet();
+    private final BitSet writtenThreadIds = new BitSet();
+    private int segment = 0;
+
+    public BinaryTraceFileWriter(TraceOutput output, SignatureRegistry signatureRegistry) {
+      this.output = output;
+      this.signatureRegistry = signatureRegistry;
+    }
+
+    static byte[] fileHeader(long epochMillis, long nanoTime) {
+      return ByteBuffer.allocate(TraceFileFormat.BINARY_HEADER_LENGTH + CLOCK_LENGTH)
+          .putInt(TraceFileFormat.BINARY_MAGIC)
+          .putInt(TraceFileFormat.BINARY_VERSION)
+          .put(clockRecord(epochMillis, nanoTime))
+          .array();
+    }
+
+    static byte[] clockRecord(long epochMillis, long nanoTime) {
+      return ByteBuffer.allocate(CLOCK_LENGTH)
+          .put(TraceFileFormat.TAG_CLOCK)
+          .putLong(epochMillis)
+          .putLong(nanoTime)
+          .array();
+    }
+
+    @Override
+    public void writeTracesToFile(TraceBuffer.Batch batch) {
+      TraceBuffer thread = batch.source();
+      for (int i = 0; i < batch.size(); i++) {
+        int methodId = batch.methodId(i);
+        int weight = batch.weight(i);
+        int untracedCount = batch.untracedCount(i);
+        if (untracedCount > 0) {
+          reserve(EVENT_WITH_UNTRACED_LENGTH, methodId, thread)
+              .put(TraceFileFormat.TAG_EVENT_WITH_UNTRACED)
+              .putLong(batch.startNs(i))
+              .putLong(batch.durationNs(i))
+              .putInt(methodId)
+              .putInt(thread.threadId())
+              .putInt(weight)
+              .putInt(untracedCount)
+              .putLong(batch.untracedNs(i))
+              .putShort(batch.depth(i));
+        } else if (weight == 1) {
+          reserve(EVENT_LENGTH, methodId, thread)
+              .put(TraceFileFormat.TAG_EVENT)
+              .putLong(batch.startNs(i))
+              .putLong(batch.durationNs(i))
+              .putInt(methodId)
+              .putInt(thread.threadId())
+              .putShort(batch.depth(i));
+        } else {
+          reserve(SAMPLED_EVENT_LENGTH, methodId, thread)
+              .put(TraceFileFormat.TAG_SAMPLED_EVENT)
+              .putLong(batch.startNs(i))
+              .putLong(batch.durationNs(i))
+              .putInt(methodId)
+              .putInt(thread.threadId())
+              .putInt(weight)
+              .putShort(batch.depth(i));
+        }
+        output.eventWritten(batch.startNs(i), batch.durationNs(i));
+      }
+    }
+
+    @Override
+    public void writeDroppedToFile(int methodId, long count) {
+      reserve(DROPPED_LENGTH, methodId, null)
+          .put(TraceFileFormat.TAG_DROPPED)
+          .putInt(methodId)
+          .putLong(count);
+    }
+
+    // Reserves room for a record together with the dictionary entries it refers to. Every
+    // segment repeats the dictionary entries it needs, so each segment can be read on its own.
+    private ByteBuffer reserve(int recordLength, int methodId, TraceBuffer thread) {
+      ByteBuffer buffer = output.reserve(recordLength + dictionaryLength(methodId, thread));
+      if (output.segment() != segment) {
+        segment = output.segment();
+        writtenMethodIds.clear();
+        writtenThreadIds.clear();
+        buffer = output.reserve(recordLength + dictionaryLength(methodId, thread));
+      }
+
+      if (!writtenMethodIds.get(methodId)) {
+        writtenMethodIds.set(methodId);
+        byte[] signature = signatureRegistry.signatureUtf8(methodId);
+        buffer.put(TraceFileFormat.TAG_METHOD)
+            .putInt(methodId)
+            .putInt(signature.length)
+            .put(signature);
+      }
+      if (thread != null && !writtenThreadIds.get(thread.threadId())) {
+        writtenThreadIds.set(thread.threadId());
+        byte[] threadName = thread.threadNameUtf8();
+        buffer.put(TraceFileFormat.TAG_THREAD)
+            .putInt(thread.threadId())
+            .putInt(thread.threadHashCode())
+            .putInt(threadName.length)
+            .put(threadName);
+      }
+      return buffer;
+    }
+
+    private int dictionaryLength(int methodId, TraceBuffer thread) {
+      int length = 0;
+      if (!writtenMethodIds.get(methodId)) {
+        length += 1 + 4 + 4 + signatureRegistry.signatureUtf8(methodId).length;
+      }
+      if (thread != null && !writtenThreadIds.get(thread.threadId())) {
+        length += 1 + 4 + 4 + 4 + thread.threadNameUtf8().length;
+      }
+      return length;
+    }
+
+    @Override
+    public void flush() {
+      output.flush();
+    }
+
+    @Override
+    public void close() {
+      output.close();
+    }
+  }
+
+  /**
+   * Destination of the encoded traces. Writers reserve space in a buffer, the output decides when
+   * the buffered bytes reach the file.
+   */
+  private interface TraceOutput {
+
+    ByteBuffer reserve(int bytes);
+
+    /**
+     * Changes whenever the output starts a new file or index block that has to be readable on its
+     * own.
+     */
+    int segment();
+
+    /**
+     * Called after an event was encoded, keeps track of the time range of the current file.
+     */
+    void eventWritten(long startNs, long durationNs);
+
+    void flush();
+
+    void close();
+  }
+
+  /**
+   * Creates the first records of every file, starting with the clock anchor taken for that file.
+   */
+  @FunctionalInterface
+  private interface SegmentHeader {
+
+    byte[] create(long epochMillis, long nanoTime);
+  }
+
+  private static class ChannelTraceOutput implements TraceOutput {
+
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
 
-    private final String fileName;
-    private FileWriter fileWriter = null;
+    private final TraceSegments segments;
+    private final SegmentHeader fileHeader;
+    private final TraceIndex index;
+    private final ByteBuffer buffer;
+    private final long maxBytes;
+    private final long maxAgeNs;
+    private FileChannel channel = null;
+    private long bytesWritten = 0;
+    private boolean rotationDue = false;
+    // increases with every file and index block
+    private int segment = 0;
+
+    /**
+     * @param index    sparse index written next to every file, {@code null} for none
+     * @param maxBytes size at which the next file is started
+     * @param maxAgeNs age at which the next file is started, {@code 0} never rotates by age
+     */
+    public ChannelTraceOutput(TraceSegments segments, SegmentHeader fileHeader, TraceIndex index,
+        int bufferSize, long maxBytes, long maxAgeNs) {
+      this.segments = segments;
+      this.fileHeader = fileHeader;
+      this.index = index;
+      this.buffer = ByteBuffer.allocateDirect(bufferSize);
+      this.maxBytes = maxBytes;
+      this.maxAgeNs = maxAgeNs;
+    }
+
+    @Override
+    public ByteBuffer reserve(int bytes) {
+      if (channel == null) {
+        open();
+      } else if (segments.events() > 0
+          && (rotationDue || bytesWritten + buffer.position() + bytes > maxBytes)) {
+        closeFile();
+        open();
+      } else if (index != null && index.isBlockDue()) {
+        // the next record starts a block that can be read on its own
+        index.startBlock(bytesWritten + buffer.position());
+        segment++;
+      }
+      if (buffer.remaining() < bytes) {
+        writeBuffer();
+        if (buffer.remaining() < bytes) {
+          throw new IllegalArgumentException(
+              "Record of " + bytes + " bytes exceeds write buffer of " + buffer.capacity());
+        }
+      }
+      return buffer;
+    }
+
+    @Override
+    public int segment() {
+      return segment;
+    }
+
+    @Override
+    public void eventWritten(long startNs, long durationNs) {
+      segments.eventWritten(startNs, durationNs);
+      if (index != null) {
+        index.eventsWritten(startNs, startNs, startNs + durationNs, 1);
+      }
+    }
+
+    void eventsWritten(long minStartNs, long maxEndNs, long count) {
+      segments.eventsWritten(minStartNs, maxEndNs, count);
+      if (index != null) {
+        index.eventsWritten(minStartNs, maxEndNs, maxEndNs, count);
+      }
+    }
+
+    private void open() {
+      rotationDue = false;
+      bytesWritten = 0;
+      segment++;
+      try {
+        File file = segments.start();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        buffer.put(fileHeader.create(segments.clockEpochMillis(), segments.clockNanoTime()));
+        if (index != null) {
+          index.start(file, buffer.position(), segments.clockEpochMillis(),
+              segments.clockNanoTime());
+        }
+      } catch (IOException e) {
+        log.error("Cannot open file {}", segments.file().getAbsolutePath(), e);
+        System.exit(1);
+      }
+    }
+
+    private void writeBuffer() {
+      buffer.flip();
+      bytesWritten += buffer.remaining();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        log.error("Cannot write to file {}", segments.file().getAbsolutePath(), e);
+        System.exit(1);
+      }
+      buffer.clear();
+    }
+
+    private void closeFile() {
+      writeBuffer();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.error("Cannot close file {}", segments.file().getAbsolutePath(), e);
+      }
+      channel = null;
+      if (index != null) {
+        index.finish(bytesWritten);
+      }
+      segments.finish();
+    }
+
+    @Override
+    public void flush() {
+      if (channel != null) {
+        writeBuffer();
+        if (index != null) {
+          index.flush();
+        }
+        if (maxAgeNs > 0 && segments.ageNs() >= maxAgeNs) {
+          rotationDue = true;
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      if (channel != null) {
+        closeFile();
+      }
+      log.info("Tracing closed and written finished.");
+    }
+  }
+
+  private static class MappedSegmentTraceOutput implements TraceOutput {
+
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
+
+    private final TraceSegments segments;
+    private final SegmentHeader clockRecord;
+    private final int segmentSize;
+    private final long maxAgeNs;
+    private MappedByteBuffer buffer = null;
+    private boolean rotationDue = false;
+
+    public MappedSegmentTraceOutput(TraceSegments segments, SegmentHeader clockRecord,
+        int segmentSize, long maxAgeNs) {
+      this.segments = segments;
+      this.clockRecord = clockRecord;
+      this.segmentSize = segmentSize;
+      this.maxAgeNs = maxAgeNs;
+    }
+
+    @Override
+    public ByteBuffer reserve(int bytes) {
+      if (buffer == null || buffer.remaining() < bytes
+          || (rotationDue && segments.events() > 0)) {
+        if (bytes > segmentSize - TraceFileFormat.SEGMENT_HEADER_LENGTH) {
+          throw new IllegalArgumentException(
+              "Record of " + bytes + " bytes exceeds segment size of " + segmentSize);
+        }
+        finishSegment();
+        startSegment();
+      }
+      return buffer;
+    }
 
-    public CsvTraceFileWriter(String fileName) {
-      this.fileName = fileName;
+    @Override
+    public int segment() {
+      return segments.number();
     }
 
     @Override
-    public void writeTraceToFile(Datapoint datapoint) {
-      openFileWriterIfNeeded();
+    public void eventWritten(long startNs, long durationNs) {
+      segments.eventWritten(startNs, durationNs);
+    }
 
-      StringBuilder logLine = new StringBuilder();
-      logLine
-          .append(datapoint.startNs)
-          .append(";")
-          .append(datapoint.durationNs)
-          .append(";")
-          .append(datapoint.signature)
-          .append(";")
-          .append(datapoint.threadHashCode)
-          .append(";")
-          .append(datapoint.threadName)
-          .append("\n");
+    private void startSegment() {
+      rotationDue = false;
       try {
-        fileWriter.append(logLine);
+        File file = segments.start();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          preallocate(channel);
+          // the mapping stays valid after the channel is closed
+          buffer = channel.map(MapMode.READ_WRITE, 0, segmentSize);
+        }
       } catch (IOException e) {
-        log.error("Cannot write to file {}", new File(fileName).getAbsolutePath(), e);
+        log.error("Cannot open file {}", segments.file().getAbsolutePath(), e);
         System.exit(1);
       }
+
+      buffer.putInt(TraceFileFormat.SEGMENT_MAGIC)
+          .putInt(TraceFileFormat.BINARY_VERSION)
+          .putLong(TraceFileFormat.SEGMENT_HEADER_LENGTH)
+          .put(clockRecord.create(segments.clockEpochMillis(), segments.clockNanoTime()));
     }
 
-    private void openFileWriterIfNeeded() {
-      if (fileWriter == null) {
-        File file = new File(fileName);
-        try {
-          fileWriter = new FileWriter(file, StandardCharsets.UTF_8);
-          log.info("Tracing file {} created.", file.getAbsolutePath());
-        } catch (IOException e) {
-          log.error("Cannot open file {}", file.getAbsolutePath(), e);
-          System.exit(1);
+    /**
+     * Writes zeros up to the segment size, so the file system reserves the blocks now. Mapping
+     * alone creates a sparse file, a full disk would then crash the writing thread with a SIGBUS
+     * on the first write to the mapping instead of an {@link IOException} here.
+     */
+    private void preallocate(FileChannel channel) throws IOException {
+      ByteBuffer zeros = ByteBuffer.allocateDirect(Math.min(segmentSize, 1 << 20));
+      long position = 0;
+      while (position < segmentSize) {
+        zeros.clear().limit((int) Math.min(zeros.capacity(), segmentSize - position));
+        while (zeros.hasRemaining()) {
+          position += channel.write(zeros, position);
+        }
+      }
+    }
+
+    private void finishSegment() {
+      if (buffer != null) {
+        flush();
+        buffer.force();
+        buffer = null;
+        segments.finish();
+      }
+    }
+
+    @Override
+    public void flush() {
+      if (buffer != null) {
+        // records become visible to readers only after the valid length covers them
+        buffer.putLong(TraceFileFormat.SEGMENT_VALID_LENGTH_OFFSET, buffer.position());
+        if (maxAgeNs > 0 && segments.ageNs() >= maxAgeNs) {
+          rotationDue = true;
         }
       }
     }
 
     @Override
     public void close() {
-      if (fileWriter != null) {
-        try {
-          fileWriter.close();
-          fileWriter = null;
-        } catch (IOException e) {
-          log.error("Cannot close file {}", fileName, e);
+      finishSegment();
+      log.info("Tracing closed and written finished.");
+    }
+  }
+
+  /**
+   * Compresses the traces in independently decodable blocks before they reach the channel output.
+   * A block starts with a clock record, and its new segment number makes the writer repeat the
+   * dictionary records.
+   */
+  private static class DeflateTraceOutput implements TraceOutput {
+
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(TracingService.class);
+
+    // a partially filled block is compressed on flush once it is that old
+    private static final long MAX_BLOCK_AGE_NS = Duration.ofSeconds(1).toNanos();
+
+    private final ChannelTraceOutput channelOutput;
+    private final SegmentHeader clockRecord;
+    private final Deflater deflater;
+    private final ByteBuffer block;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private byte[] compressed;
+    private int blockNumber = 0;
+    private boolean blockOpen = false;
+    private long blockStartNs;
+    private long minStartNs;
+    private long maxEndNs;
+    private long events;
+
+    private long uncompressedBytes = 0;
+    private long compressedBytes = 0;
+    private long compressionCpuNs = 0;
+
+    public DeflateTraceOutput(ChannelTraceOutput channelOutput, SegmentHeader clockRecord,
+        int level, int blockSize) {
+      this.channelOutput = channelOutput;
+      this.clockRecord = clockRecord;
+      this.deflater = new Deflater(level, true);
+      this.block = ByteBuffer.allocate(blockSize);
+      this.compressed = new byte[blockSize + blockSize / 8 + 64];
+    }
+
+    static byte[] fileHeader(long epochMillis, long nanoTime) {
+      return ByteBuffer.allocate(TraceFileFormat.BINARY_HEADER_LENGTH)
+          .putInt(TraceFileFormat.COMPRESSED_MAGIC)
+          .putInt(TraceFileFormat.BINARY_VERSION)
+          .array();
+    }
+
+    @Override
+    public ByteBuffer reserve(int bytes) {
+      if (!blockOpen || block.remaining() < bytes) {
+        if (blockOpen) {
+          writeBlock();
+        }
+        startBlock();
+        if (block.remaining() < bytes) {
+          throw new IllegalArgumentException(
+              "Record of " + bytes + " bytes exceeds compression block of " + block.capacity());
+        }
+      }
+      return block;
+    }
+
+    @Override
+    public int segment() {
+      return blockNumber;
+    }
+
+    @Override
+    public void eventWritten(long startNs, long durationNs) {
+      minStartNs = Math.min(minStartNs, startNs);
+      maxEndNs = Math.max(maxEndNs, startNs + durationNs);
+      events++;
+    }
+
+    private void startBlock() {
+      blockNumber++;
+      blockOpen = true;
+      blockStartNs = System.nanoTime();
+      minStartNs = Long.MAX_VALUE;
+      maxEndNs = Long.MIN_VALUE;
+      events = 0;
+      block.clear();
+      block.put(clockRecord.create(System.currentTimeMillis(), blockStartNs));
+    }
+
+    private void writeBlock() {
+      long cpuStartNs = threadMXBean.getCurrentThreadCpuTime();
+      deflater.reset();
+      deflater.setInput(block.array(), 0, block.position());
+      deflater.finish();
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == compressed.length) {
+          compressed = Arrays.copyOf(compressed, 2 * compressed.length);
         }
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      compressionCpuNs += threadMXBean.getCurrentThreadCpuTime() - cpuStartNs;
+      uncompressedBytes += block.position();
+      compressedBytes += length;
+
+      channelOutput.reserve(TraceFileFormat.COMPRESSED_BLOCK_HEADER_LENGTH + length)
+          .putInt(block.position())
+          .putInt(length)
+          .put(compressed, 0, length);
+      if (events > 0) {
+        channelOutput.eventsWritten(minStartNs, maxEndNs, events);
+      }
+      blockOpen = false;
+    }
+
+    @Override
+    public void flush() {
+      if (blockOpen && System.nanoTime() - blockStartNs >= MAX_BLOCK_AGE_NS) {
+        writeBlock();
+      }
+      channelOutput.flush();
+    }
+
+    @Override
+    public void close() {
+      if (blockOpen) {
+        writeBlock();
+      }
+      channelOutput.close();
+      deflater.end();
+      if (uncompressedBytes > 0) {
+        double uncompressedMb = uncompressedBytes / (double) (1 << 20);
+        log.info("Tracing compressed {} MB to {} MB (ratio {}), {} ms CPU per MB.",
+            String.format(Locale.ROOT, "%.1f", uncompressedMb),
+            String.format(Locale.ROOT, "%.1f", compressedBytes / (double) (1 << 20)),
+            String.format(Locale.ROOT, "%.2f", uncompressedBytes / (double) compressedBytes),
+            String.format(Locale.ROOT, "%.2f", compressionCpuNs / 1e6 / uncompressedMb));
       }
-      log.info("Tracing file {} closed and written finished.", fileName);
     }
   }
 }
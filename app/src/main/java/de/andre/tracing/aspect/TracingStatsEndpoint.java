@@ -0,0 +1,40 @@
+package de.andre.tracing.aspect;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Serves the live per method statistics of {@link TracingService}, at most one second old.
+ */
+@RestController
+public class TracingStatsEndpoint {
+
+  private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final TracingService tracingService;
+
+  public TracingStatsEndpoint(TracingService tracingService) {
+    this.tracingService = tracingService;
+  }
+
+  @GetMapping(path = "/tracing/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+  public LiveStats.Snapshot getStats() {
+    return stats();
+  }
+
+  @GetMapping(path = "/tracing/stats/prometheus", produces = PROMETHEUS_TEXT)
+  public String getPrometheusStats() {
+    return stats().toPrometheus();
+  }
+
+  private LiveStats.Snapshot stats() {
+    LiveStats.Snapshot stats = tracingService.stats();
+    if (stats == null) {
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "tracing.stats is disabled");
+    }
+    return stats;
+  }
+}
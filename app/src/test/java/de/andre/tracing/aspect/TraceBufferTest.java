@@ -0,0 +1,79 @@
+package de.andre.tracing.aspect;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.andre.tracing.aspect.TraceBuffer.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+class TraceBufferTest {
+
+  private final TraceBuffer buffer = new TraceBuffer(Thread.currentThread(), 1,
+      new TraceBuffer.Settings(16, 8, OverflowPolicy.DROP_NEWEST, 0, 1), new DroppedTraces(),
+      () -> {
+      });
+
+  @Test
+  void untracedChildIsFolded() {
+    buffer.enterCall();
+    buffer.enterCall();
+    exit(20, 30, 2, false);
+    exit(0, 100, 1, true);
+
+    TraceBuffer.Batch batch = drain();
+    assertEquals(1, batch.size());
+    assertEquals(1, batch.untracedCount(0));
+    assertEquals(30, batch.untracedNs(0));
+  }
+
+  @Test
+  void tracedDescendantsOfUntracedChildAreNotFolded() {
+    // P -> C (untraced) -> G
+    buffer.enterCall();
+    buffer.enterCall();
+    buffer.enterCall();
+    exit(20, 30, 3, true);
+    exit(10, 50, 2, false);
+    exit(0, 100, 1, true);
+
+    TraceBuffer.Batch batch = drain();
+    assertEquals(2, batch.size());
+    assertEquals(3, batch.methodId(0));
+    assertEquals(2, batch.depth(0));
+    assertEquals(0, batch.untracedCount(0));
+    assertEquals(1, batch.methodId(1));
+    assertEquals(1, batch.untracedCount(1));
+    assertEquals(20, batch.untracedNs(1));
+    assertEquals(30, batch.tracedChildrenNs(1));
+  }
+
+  @Test
+  void untracedChainsAreFoldedOnce() {
+    // P -> C1 (untraced) -> C2 (untraced) -> G, P -> C3 (untraced)
+    buffer.enterCall();
+    buffer.enterCall();
+    buffer.enterCall();
+    buffer.enterCall();
+    exit(30, 10, 4, true);
+    exit(20, 30, 3, false);
+    exit(10, 50, 2, false);
+    buffer.enterCall();
+    exit(70, 5, 2, false);
+    exit(0, 100, 1, true);
+
+    TraceBuffer.Batch batch = drain();
+    assertEquals(2, batch.size());
+    assertEquals(2, batch.untracedCount(1));
+    assertEquals(50 - 10 + 5, batch.untracedNs(1));
+    assertEquals(10, batch.tracedChildrenNs(1));
+  }
+
+  private void exit(long startNs, long durationNs, int methodId, boolean traced) {
+    buffer.exitCall(durationNs, traced && buffer.offer(startNs, durationNs, methodId, 1));
+  }
+
+  private TraceBuffer.Batch drain() {
+    TraceBuffer.Batch batch = new TraceBuffer.Batch(16);
+    buffer.drainTo(batch);
+    return batch;
+  }
+}
@@ -0,0 +1,346 @@
+package de.andre.tracing.aspect;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TraceFileAnalyzerTest {
+
+  private static final String HEADER = "#version;2";
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void tracedDescendantOfUntracedCallBelongsToTracedAncestor() throws IOException {
+    // P -> C (untraced, 50 ms) -> G (30 ms)
+    List<String> expected = List.of(
+        "x.P.p();100;100;1",
+        ".. <self>;50;50;1",
+        ".. <untraced>;20;20;1",
+        ".. x.G.g();30;30;1",
+        "x.G.g();30;100;1",
+        ".. <self>;30;100;1");
+    String[] lines = {
+        HEADER,
+        "*1,0,0,2;" + ms(20) + ";" + ms(30) + ";void x.G.g();1;main",
+        "*1,1," + ms(20) + ",0;0;" + ms(100) + ";void x.P.p();1;main"};
+
+    assertEquals(expected, tree("memory", lines));
+    assertEquals(expected, tree("streaming", lines));
+  }
+
+  @Test
+  void streamingKeepsManySubCallsOfOpenCalls() throws IOException {
+    // P -> C (untraced) -> 200 G, then P -> 300 X -> Y
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    for (int i = 0; i < 200; i++) {
+      lines.add("*1,0,0,2;" + ms(i * 20) + ";" + ms(10) + ";void x.G.g();1;main");
+    }
+    for (int i = 0; i < 300; i++) {
+      long startNs = ms(5000 + i * 15);
+      lines.add("*1,0,0,2;" + (startNs + ms(1)) + ";" + ms(5) + ";void x.Y.y();1;main");
+      lines.add("*1,0,0,1;" + startNs + ";" + ms(10) + ";void x.X.x();1;main");
+    }
+    lines.add("*1,1," + ms(3000) + ",0;0;" + ms(10000) + ";void x.P.p();1;main");
+    String[] trace = lines.toArray(String[]::new);
+
+    List<String> memory = tree("memory", trace);
+    assertEquals(List.of(
+        "x.P.p();10000;100;1",
+        ".. <self>;2000;20;1",
+        ".. <untraced>;3000;30;1",
+        ".. x.G.g();2000;20;1",
+        ".. x.X.x();3000;30;1"), memory.subList(0, 5));
+    assertEquals(memory, tree("streaming", trace));
+  }
+
+  @Test
+  void callWithEqualStartAndDurationIsNestedIntoTheLaterOne() throws IOException {
+    // a call is written after its sub calls
+    String[] lines = {
+        HEADER,
+        "*1,0,0,1;0;" + ms(10) + ";void x.C.c();1;main",
+        "0;" + ms(10) + ";void x.P.p();1;main"};
+
+    List<String> expected = List.of(
+        "x.P.p();10;100;1",
+        ".. <self>;0;0;1",
+        ".. x.C.c();10;100;1",
+        "x.C.c();10;100;1",
+        ".. <self>;10;100;1");
+    assertEquals(expected, tree("memory", lines));
+    assertEquals(expected, tree("streaming", lines));
+  }
+
+  @Test
+  void callStartingAtTheEndIsNotNested() throws IOException {
+    String[] lines = {
+        HEADER,
+        "0;" + ms(10) + ";void x.P.p();1;main",
+        ms(10) + ";0;void x.Q.q();1;main"};
+
+    assertEquals(List.of(
+        "x.P.p();10;100;1",
+        ".. <self>;10;100;1",
+        "x.Q.q();0;100;1",
+        ".. <self>;0;0;1"), tree("memory", lines));
+  }
+
+  @Test
+  void callOverlappingTheEndIsNotNested() throws IOException {
+    String[] lines = {
+        HEADER,
+        ms(5) + ";" + ms(10) + ";void x.X.x();1;main",
+        "0;" + ms(10) + ";void x.P.p();1;main"};
+
+    assertEquals(List.of(
+        "x.P.p();10;100;1",
+        ".. <self>;10;100;1",
+        "x.X.x();10;100;1",
+        ".. <self>;10;100;1"), tree("memory", lines));
+  }
+
+  @Test
+  void longRootCallWithManyChildren() throws IOException {
+    // R -> 1000 C -> G
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    for (int i = 0; i < 1000; i++) {
+      lines.add("*1,0,0,2;" + ms(i * 10 + 2) + ";" + ms(1) + ";void x.G.g();1;main");
+      lines.add("*1,0,0,1;" + ms(i * 10 + 1) + ";" + ms(5) + ";void x.C.c();1;main");
+    }
+    lines.add("0;" + ms(10000) + ";void x.R.r();1;main");
+    String[] trace = lines.toArray(String[]::new);
+
+    List<String> expected = List.of(
+        "x.R.r();10000;100;1",
+        ".. <self>;5000;50;1",
+        ".. x.C.c();5000;50;1",
+        "x.C.c();5000;100;1000",
+        ".. <self>;4000;80;1000",
+        ".. x.G.g();1000;20;1000",
+        "x.G.g();1000;100;1000",
+        ".. <self>;1000;100;1000");
+    assertEquals(expected, tree("memory", trace));
+    assertEquals(expected, tree("streaming", trace));
+  }
+
+  @Test
+  void keepsValuesBeyondTheCompactColumns() throws IOException {
+    // more threads than char ids, durations beyond an int
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    for (int i = 0; i < 70_000; i++) {
+      lines.add(ms(i % 2 == 0 ? 1 : 5000) + ";" + ms(i % 2 == 0 ? 3000 : 1) + ";void x.A.a();"
+          + i + ";t" + i);
+    }
+
+    assertEquals(List.of(
+        "x.A.a();105035000;100;70000",
+        ".. <self>;105035000;100;70000"), tree("memory", lines.toArray(String[]::new)));
+  }
+
+  @Test
+  void parsesVersion1Prefixes() throws IOException {
+    String[] lines = {
+        "*3;0;" + ms(10) + ";void x.A.a();1;main",
+        "*1,2," + ms(4) + ";" + ms(20) + ";" + ms(10) + ";void x.B.b();1;main"};
+
+    assertEquals(List.of(
+        "x.A.a();30;100;3",
+        ".. <self>;30;100;3",
+        "x.B.b();10;100;1",
+        ".. <self>;6;60;1",
+        ".. <untraced>;4;40;1"), tree("memory", lines));
+  }
+
+  @Test
+  void parsesVersion2Prefixes() throws IOException {
+    String[] lines = {
+        HEADER,
+        "*2,0,0,1;" + ms(1) + ";" + ms(2) + ";void x.C.c();1;main",
+        "*1,1," + ms(3) + ",0;0;" + ms(10) + ";void x.P.p();1;main"};
+
+    List<String> expected = List.of(
+        "x.P.p();10;100;1",
+        ".. <self>;5;50;1",
+        ".. <untraced>;3;30;1",
+        // a sub call counts with the weight of its parent
+        ".. x.C.c();2;20;1",
+        "x.C.c();4;100;2",
+        ".. <self>;4;100;2");
+    assertEquals(expected, tree("memory", lines));
+    assertEquals(expected, tree("streaming", lines));
+  }
+
+  @Test
+  void parsesNegativeAndLongNumbersAndCrLf() throws IOException {
+    long late = 1_000_000_000_000_000_000L;
+    String trace = String.join("\r\n",
+        HEADER,
+        -ms(5) + ";" + ms(10) + ";void x.A.a();-2147483648;main",
+        "*1,0,0,1;" + late + ";" + ms(4) + ";void x.C.c();1;main",
+        late + ";" + ms(10) + ";void x.P.p();1;main",
+        "");
+
+    assertEquals(List.of(
+        "x.A.a();10;100;1",
+        ".. <self>;10;100;1",
+        "x.P.p();10;100;1",
+        ".. <self>;6;60;1",
+        ".. x.C.c();4;40;1",
+        "x.C.c();4;100;1",
+        ".. <self>;4;100;1"), tree("memory", trace));
+  }
+
+  @Test
+  void threadNamesMayContainSeparators() throws IOException {
+    // C would be nested into P if the threads were mixed up
+    String[] lines = {
+        HEADER,
+        "0;" + ms(10) + ";void x.P.p();1;pool;1",
+        ms(2) + ";" + ms(3) + ";void x.C.c();1;pool;2"};
+
+    assertEquals(List.of(
+        "x.P.p();10;100;1",
+        ".. <self>;10;100;1",
+        "x.C.c();3;100;1",
+        ".. <self>;3;100;1"), tree("memory", lines));
+  }
+
+  @Test
+  void collidingHashesAreDistinguished() throws IOException {
+    // "Aa" and "BB" have the same hash
+    String[] lines = {
+        HEADER,
+        "0;" + ms(10) + ";void x.Aa();7;Aa",
+        ms(2) + ";" + ms(3) + ";void x.BB();7;BB",
+        ms(20) + ";" + ms(1) + ";void x.BB();7;Aa"};
+
+    assertEquals(List.of(
+        "x.Aa();10;100;1",
+        ".. <self>;10;100;1",
+        "x.BB();4;100;2",
+        ".. <self>;4;100;2"), tree("memory", lines));
+  }
+
+  @Test
+  void malformedLinesNameFileAndLine() throws IOException {
+    List<String> malformed = List.of(
+        "x;10;void x.A.a();1;main",
+        "0;10;void x.A.a()",
+        "0;10;void x.A.a();1",
+        "0;10; ;1;main",
+        "0;10;void x.A.a();99999999999;main",
+        "99999999999999999999;10;void x.A.a();1;main",
+        "*1,2;0;10;void x.A.a();1;main",
+        "#dropped;5");
+    for (String line : malformed) {
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+          () -> tree("memory", HEADER, "0;10;void x.A.a();1;main", line));
+      assertTrue(e.getMessage().startsWith("Invalid trace line in " + dir.resolve("trace.csv")),
+          e.getMessage());
+      assertTrue(e.getMessage().endsWith(": " + line), e.getMessage());
+    }
+  }
+
+  @Test
+  void diffAppliesTheTimeWindowsToTheirTrace() throws IOException {
+    Path trace = Files.write(dir.resolve("trace.csv"), List.of(
+        HEADER,
+        "#clock;1700000000000;0",
+        "0;" + ms(10) + ";void x.A.a();1;main",
+        ms(60_000) + ";" + ms(10) + ";void x.B.b();1;main"));
+    Path output = dir.resolve("diff.csv");
+
+    TraceFileAnalyzer.main(new String[]{"-type", "diff", "-file", trace.toString(),
+        "-baseline", trace.toString(), "-from", "1700000030000", "-output", output.toString()});
+    assertEquals(List.of(
+        "both;;x.B.b();1;1",
+        "removed;;x.A.a();0;1"), diffRows(output));
+
+    TraceFileAnalyzer.main(new String[]{"-type", "diff", "-file", trace.toString(),
+        "-baseline", trace.toString(), "-from", "1700000030000", "-baselineTo", "1700000030000",
+        "-output", output.toString()});
+    assertEquals(List.of(
+        "new;;x.B.b();1;0",
+        "removed;;x.A.a();0;1"), diffRows(output));
+  }
+
+  @Test
+  void indexKeepsTheSubCallsOfCallsOpenInTheTimeWindow() throws IOException {
+    // P starts before the window, its sub call C ends before it, X and the drops are unrelated
+    List<String> blocks = List.of(
+        -ms(100) + ";" + ms(10) + ";void x.X.x();1;main\n#dropped;5;void x.X.x()\n",
+        "*1,0,0,1;" + ms(1) + ";" + ms(10) + ";void x.C.c();1;main\n",
+        "*1,0,0,1;" + ms(1000) + ";" + ms(10) + ";void x.C.c();1;main\n"
+            + "0;" + ms(2000) + ";void x.P.p();1;main\n");
+    String header = HEADER + "\n#clock;1700000000000;0\n";
+    Path trace = Files.writeString(dir.resolve("trace.csv"), header + String.join("", blocks));
+    Path output = dir.resolve("tree.csv");
+    String[] args = {"-type", "tree", "-mode", "streaming", "-file", trace.toString(),
+        "-from", "1700000000500",
+        "-output", output.toString()};
+
+    TraceFileAnalyzer.main(args);
+    List<String> withoutIndex = treeRows(output);
+    assertEquals(List.of(
+        "x.P.p();2000;100;1",
+        ".. <self>;1980;99;1",
+        ".. x.C.c();20;1;1"), withoutIndex.subList(0, 3));
+
+    Files.write(dir.resolve("trace.csv" + TraceFileFormat.INDEX_FILE_SUFFIX), List.of(
+        TraceFileFormat.INDEX_HEADER,
+        header.length() + ";" + blocks.get(0).length() + ";1699999999900;1699999999910;1",
+        header.length() + blocks.get(0).length() + ";" + blocks.get(1).length()
+            + ";1700000000001;1700000000011;1",
+        header.length() + blocks.get(0).length() + blocks.get(1).length() + ";"
+            + blocks.get(2).length() + ";1700000000000;1700000002000;2"));
+    TraceFileAnalyzer.main(args);
+    assertEquals(withoutIndex, treeRows(output));
+  }
+
+  private static List<String> diffRows(Path output) throws IOException {
+    return Files.readAllLines(output).stream()
+        .skip(1)
+        .map(row -> String.join(";", List.of(row.split(";", -1)).subList(0, 5)))
+        .toList();
+  }
+
+  /**
+   * Writes the lines as csv trace and returns method, sum, percent and call count of the rows of
+   * the tree report.
+   */
+  List<String> tree(String mode, String... lines) throws IOException {
+    return tree(mode, String.join("\n", lines) + "\n");
+  }
+
+  List<String> tree(String mode, String trace) throws IOException {
+    Path file = Files.writeString(dir.resolve("trace.csv"), trace);
+    Path output = dir.resolve("tree-" + mode + ".csv");
+    TraceFileAnalyzer.main(new String[]{"-type", "tree", "-mode", mode,
+        "-file", file.toString(), "-output", output.toString()});
+    return treeRows(output);
+  }
+
+  private static List<String> treeRows(Path output) throws IOException {
+    return Files.readAllLines(output).stream()
+        .skip(1)
+        .map(row -> String.join(";", List.of(row.split(";")).subList(2, 6)))
+        .toList();
+  }
+
+  static long ms(long millis) {
+    return millis * 1_000_000;
+  }
+}